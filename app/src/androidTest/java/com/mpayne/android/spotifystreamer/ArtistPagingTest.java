@@ -0,0 +1,120 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+import android.test.ActivityInstrumentationTestCase2;
+import android.widget.SearchView;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pages through search results from a loopback stand-in by scrolling the artist list, with
+ * pages that repeat artists already shown.
+ */
+public class ArtistPagingTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int PAGE_SIZE = 20;
+
+    private LocalSearchServer mServer;
+    private RecyclerView mRecyclerView;
+    private ArtistAdapter mArtistAdapter;
+    private String mQuery;
+
+    public ArtistPagingTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSearchServer();
+        File cacheDirectory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "spotify-http-" + getName());
+        SpotifyClient.setInstance(new SpotifyClient(getInstrumentation().getTargetContext(),
+                mServer.getEndpoint(), cacheDirectory));
+        mQuery = "p" + SystemClock.elapsedRealtime();
+
+        MainActivity activity = getActivity();
+        mRecyclerView = (RecyclerView) activity.findViewById(R.id.recyclerview_artist);
+        mArtistAdapter = (ArtistAdapter) mRecyclerView.getAdapter();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SpotifyClient.setInstance(null);
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testRepeatedPageKeepsPaging() {
+        mServer.setTotal(3 * PAGE_SIZE);
+        // The second page only repeats the first, so it adds no rows to scroll through.
+        mServer.repeatPage(PAGE_SIZE);
+        search();
+        awaitCount(PAGE_SIZE);
+
+        scrollToEnd();
+        awaitCount(2 * PAGE_SIZE);
+        List<Artist> artists = readList();
+        assertEquals(mQuery + " 0", artists.get(0).getName());
+        // Rows after the repeats come from the third page, not from the server's offset 20 again.
+        assertEquals(mQuery + " " + (2 * PAGE_SIZE), artists.get(PAGE_SIZE).getName());
+        assertEquals(Arrays.asList(0, PAGE_SIZE, 2 * PAGE_SIZE), mServer.getOffsets());
+
+        // Every match is loaded, so reaching the end again asks for nothing more.
+        scrollToEnd();
+        SystemClock.sleep(500);
+        assertEquals(3, mServer.getOffsets().size());
+    }
+
+    private void search() {
+        final SearchView searchView = (SearchView) getActivity().findViewById(R.id.searchview_artist);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                searchView.setQuery(mQuery, false);
+            }
+        });
+    }
+
+    private void scrollToEnd() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // One long scroll reaches the last row and is reported to the scroll listener.
+                mRecyclerView.scrollBy(0, mRecyclerView.getHeight() * mArtistAdapter.getItemCount());
+            }
+        });
+    }
+
+    private List<Artist> readList() {
+        final List<Artist> artists = new ArrayList<>();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                artists.addAll(mArtistAdapter.getItems());
+            }
+        });
+        return artists;
+    }
+
+    private void awaitCount(final int count) {
+        assertTrue("List never reached " + count + " artists", LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                final int[] itemCount = new int[1];
+                getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        itemCount[0] = mArtistAdapter.getItemCount();
+                    }
+                });
+                return itemCount[0] == count;
+            }
+        }, TIMEOUT_MILLIS));
+    }
+}
@@ -0,0 +1,211 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.view.ViewCompat;
+import android.support.v7.widget.RecyclerView;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.util.TypedValue;
+import android.widget.SearchView;
+
+import com.squareup.picasso.StatsSnapshot;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame rate of the artist list while it is scrolled at a steady speed through search results
+ * from a loopback stand-in, loading further pages on the way, and the heap its thumbnails take.
+ */
+public class ArtistScrollBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    private static final String TAG = ArtistScrollBenchmark.class.getSimpleName();
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int TOTAL_ARTISTS = 200;
+    private static final int THUMBNAIL_ROWS = 50;
+    private static final long SCROLL_MILLIS = 4000;
+    // About a fling's worth of speed at 60 fps.
+    private static final int SCROLL_DP_PER_FRAME = 24;
+    private static final double FRAME_MILLIS = 1000.0 / 60;
+
+    private LocalSearchServer mServer;
+    private RecyclerView mRecyclerView;
+    private ArtistAdapter mArtistAdapter;
+
+    public ArtistScrollBenchmark() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSearchServer();
+        File cacheDirectory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "spotify-http-" + TAG);
+        SpotifyClient.setInstance(new SpotifyClient(getInstrumentation().getTargetContext(),
+                mServer.getEndpoint(), cacheDirectory));
+
+        MainActivity activity = getActivity();
+        mRecyclerView = (RecyclerView) activity.findViewById(R.id.recyclerview_artist);
+        mArtistAdapter = (ArtistAdapter) mRecyclerView.getAdapter();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SpotifyClient.setInstance(null);
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testScrollFrameRateWhilePaging() throws Exception {
+        mServer.setTotal(TOTAL_ARTISTS);
+        search("s" + SystemClock.elapsedRealtime());
+        awaitFirstPage();
+
+        long[] frames = scroll(SCROLL_MILLIS, SCROLL_DP_PER_FRAME);
+        int pages = mServer.getOffsets().size();
+        Log.i(TAG, String.format("Scrolled through %d rows (%d pages): %s",
+                readItemCount(), pages, describeFrames(frames)));
+        // Pages arrived while scrolling without the list holding frames back for them.
+        assertTrue(pages > 1);
+        assertTrue(median(frames) < TimeUnit.MILLISECONDS.toNanos((long) (FRAME_MILLIS * 2)));
+    }
+
+    public void testThumbnailHeapAndJankOn50Rows() throws Exception {
+        mServer.setTotal(THUMBNAIL_ROWS);
+        mServer.serveImages();
+        Context context = getInstrumentation().getTargetContext();
+        long heapBefore = usedHeap();
+        StatsSnapshot statsBefore = ImageLoader.getPicasso(context).getSnapshot();
+
+        search("h" + SystemClock.elapsedRealtime());
+        awaitFirstPage();
+        // Past the last row and back to the top, so thumbnails are bound both ways.
+        long[] down = scroll(SCROLL_MILLIS, SCROLL_DP_PER_FRAME);
+        long[] up = scroll(SCROLL_MILLIS, -SCROLL_DP_PER_FRAME);
+        getInstrumentation().waitForIdleSync();
+        long heapAfter = usedHeap();
+        StatsSnapshot stats = ImageLoader.getPicasso(context).getSnapshot();
+
+        int memoryClassBytes = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass() * 1024 * 1024;
+        int downloads = stats.downloadCount - statsBefore.downloadCount;
+        Log.i(TAG, String.format("%d rows: down %s; up %s", readItemCount(), describeFrames(down), describeFrames(up)));
+        Log.i(TAG, String.format("%d rows: heap grew %d KB of %d KB, image cache %d/%d KB, %d downloads, "
+                        + "average thumbnail %d bytes", readItemCount(), (heapAfter - heapBefore) / 1024,
+                memoryClassBytes / 1024, stats.size / 1024, stats.maxSize / 1024, downloads,
+                stats.averageTransformedBitmapSize));
+        assertEquals(THUMBNAIL_ROWS, readItemCount());
+        assertTrue(downloads > 0);
+        // Thumbnails are decoded at list size in RGB_565 rather than as the 300px originals.
+        int thumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
+        assertTrue(stats.averageTransformedBitmapSize <= thumbnailSize * thumbnailSize * 2);
+        assertTrue(median(down) < TimeUnit.MILLISECONDS.toNanos((long) (FRAME_MILLIS * 2)));
+        assertTrue(median(up) < TimeUnit.MILLISECONDS.toNanos((long) (FRAME_MILLIS * 2)));
+    }
+
+    private void search(final String query) {
+        final SearchView searchView = (SearchView) getActivity().findViewById(R.id.searchview_artist);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                searchView.setQuery(query, false);
+            }
+        });
+    }
+
+    private void awaitFirstPage() {
+        assertTrue(LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                return readItemCount() > 0;
+            }
+        }, TIMEOUT_MILLIS));
+        getInstrumentation().waitForIdleSync();
+    }
+
+    private int readItemCount() {
+        final int[] itemCount = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                itemCount[0] = mArtistAdapter.getItemCount();
+            }
+        });
+        return itemCount[0];
+    }
+
+    /**
+     * Scrolls the list by a fixed distance every animation frame for the given time.
+     *
+     * @return the time between consecutive frames, in nanoseconds
+     */
+    private long[] scroll(final long durationMillis, int dpPerFrame) throws InterruptedException {
+        final int step = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dpPerFrame,
+                mRecyclerView.getResources().getDisplayMetrics());
+        final long[] frameTimes = new long[(int) (durationMillis * 2 / FRAME_MILLIS)];
+        final int[] frameCount = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final long end = SystemClock.uptimeMillis() + durationMillis;
+                ViewCompat.postOnAnimation(mRecyclerView, new Runnable() {
+                    @Override
+                    public void run() {
+                        frameTimes[frameCount[0]++] = System.nanoTime();
+                        if (SystemClock.uptimeMillis() >= end || frameCount[0] == frameTimes.length) {
+                            done.countDown();
+                            return;
+                        }
+                        mRecyclerView.scrollBy(0, step);
+                        ViewCompat.postOnAnimation(mRecyclerView, this);
+                    }
+                });
+            }
+        });
+        assertTrue(done.await(durationMillis + TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        long[] frames = new long[frameCount[0] - 1];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frameTimes[i + 1] - frameTimes[i];
+        }
+        Arrays.sort(frames);
+        return frames;
+    }
+
+    private static long median(long[] sortedFrames) {
+        return sortedFrames[sortedFrames.length / 2];
+    }
+
+    /**
+     * Summarizes sorted frame times, counting frames that took longer than one and a half
+     * refresh intervals as janky.
+     */
+    private static String describeFrames(long[] sortedFrames) {
+        int janky = 0;
+        long totalNanos = 0;
+        for (long frame : sortedFrames) {
+            totalNanos += frame;
+            if (frame > TimeUnit.MILLISECONDS.toNanos((long) (FRAME_MILLIS * 1.5))) {
+                janky++;
+            }
+        }
+        return String.format("%d frames at %.1f fps, median %.1f ms, 90th %.1f ms, max %.1f ms, %d janky",
+                sortedFrames.length, sortedFrames.length * 1e9 / totalNanos, median(sortedFrames) / 1e6,
+                sortedFrames[sortedFrames.length * 9 / 10] / 1e6, sortedFrames[sortedFrames.length - 1] / 1e6,
+                janky);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
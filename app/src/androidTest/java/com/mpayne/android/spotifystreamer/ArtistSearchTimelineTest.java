@@ -0,0 +1,263 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+import android.test.ActivityInstrumentationTestCase2;
+import android.widget.SearchView;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays typed queries against ArtistFragment with a loopback stand-in for the search endpoint,
+ * checking what reaches the network and what reaches the artist list.
+ */
+public class ArtistSearchTimelineTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    // Gap between keystrokes of a burst, well inside the debounce window.
+    private static final long KEYSTROKE_MILLIS = 80;
+
+    private LocalSearchServer mServer;
+    private SearchView mSearchView;
+    private ArtistAdapter mArtistAdapter;
+    private ListRecorder mRecorder;
+    private long mDebounceMillis;
+    // Unique per test so neither cache answers for the stand-in.
+    private String mPrefix;
+
+    public ArtistSearchTimelineTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSearchServer();
+        File cacheDirectory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "spotify-http-" + getName());
+        SpotifyClient.setInstance(new SpotifyClient(getInstrumentation().getTargetContext(),
+                mServer.getEndpoint(), cacheDirectory));
+        mPrefix = "t" + SystemClock.elapsedRealtime();
+
+        final MainActivity activity = getActivity();
+        mDebounceMillis = activity.getResources().getInteger(R.integer.search_debounce_millis);
+        mSearchView = (SearchView) activity.findViewById(R.id.searchview_artist);
+        RecyclerView recyclerView = (RecyclerView) activity.findViewById(R.id.recyclerview_artist);
+        mArtistAdapter = (ArtistAdapter) recyclerView.getAdapter();
+        mRecorder = new ListRecorder();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mArtistAdapter.registerAdapterDataObserver(mRecorder);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mArtistAdapter.unregisterAdapterDataObserver(mRecorder);
+            }
+        });
+        SpotifyClient.setInstance(null);
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testOneSearchPerDebounceWindow() {
+        final String first = mPrefix + "rad";
+        final String second = mPrefix + "radioh";
+
+        // Two bursts of typing with a pause longer than the debounce window between them.
+        type(mPrefix + "r", mPrefix + "ra", first);
+        SystemClock.sleep(mDebounceMillis * 2);
+        type(mPrefix + "radi", mPrefix + "radio", second);
+        SystemClock.sleep(mDebounceMillis * 2);
+
+        awaitListOf(second);
+        assertEquals(2, mServer.getSearchCount());
+        assertEquals(1, mServer.getSearchCount(first));
+        assertEquals(1, mServer.getSearchCount(second));
+    }
+
+    public void testSupersededSearchIsCancelled() {
+        final String superseded = mPrefix + "beat";
+        final String newest = mPrefix + "beatles";
+        mServer.hold();
+
+        type(mPrefix + "b", mPrefix + "be", superseded);
+        assertTrue(LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getSearchCount(superseded) == 1;
+            }
+        }, TIMEOUT_MILLIS));
+
+        // Typing on while the first search is in flight replaces it once the pause is over.
+        type(mPrefix + "beatl", newest);
+        assertTrue(LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getSearchCount(newest) == 1;
+            }
+        }, TIMEOUT_MILLIS));
+        // The superseded call is torn down at the HTTP level by OkHttpClient.cancel(tag).
+        assertTrue(LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getAbandonedCount(superseded) == 1;
+            }
+        }, TIMEOUT_MILLIS));
+        assertEquals(0, mServer.getAbandonedCount(newest));
+
+        mServer.release();
+        awaitListOf(newest);
+        assertEquals(2, mServer.getSearchCount());
+        assertOnlyShown(newest);
+    }
+
+    public void testOnlyNewestResultReachesList() {
+        final String older = mPrefix + "pink";
+        final String newest = mPrefix + "pinkfl";
+
+        // The older search is answered straight away; the newer one is still debouncing.
+        type(older);
+        SystemClock.sleep(mDebounceMillis * 2);
+        awaitListOf(older);
+        mRecorder.clear();
+
+        mServer.hold();
+        type(mPrefix + "pinkf", newest);
+        assertTrue(LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getSearchCount(newest) == 1;
+            }
+        }, TIMEOUT_MILLIS));
+        mServer.release();
+        awaitListOf(newest);
+
+        // Refining keeps only matching rows, so no older artist is shown once the keys change.
+        assertOnlyShown(newest);
+    }
+
+    /**
+     * Checks that every list the adapter published since the recorder was cleared held only
+     * artists for the query.
+     */
+    private void assertOnlyShown(String query) {
+        for (List<Artist> artists : mRecorder.getLists()) {
+            for (Artist artist : artists) {
+                assertTrue(artist.getName(), artist.getName().startsWith(query + " "));
+            }
+        }
+    }
+
+    /**
+     * Types each text into the search view in turn, as successive keystrokes.
+     */
+    private void type(String... texts) {
+        for (final String text : texts) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mSearchView.setQuery(text, false);
+                }
+            });
+            SystemClock.sleep(KEYSTROKE_MILLIS);
+        }
+    }
+
+    /**
+     * Waits for the list to show the stand-in's artists for the query, and only those.
+     */
+    private void awaitListOf(final String query) {
+        assertTrue("List never showed " + query, LocalSearchServer.await(new LocalSearchServer.Condition() {
+            @Override
+            public boolean isMet() {
+                List<Artist> artists = readList();
+                if (artists.isEmpty()) {
+                    return false;
+                }
+                for (Artist artist : artists) {
+                    if (!artist.getName().startsWith(query + " ")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }, TIMEOUT_MILLIS));
+    }
+
+    private List<Artist> readList() {
+        final List<Artist> artists = new ArrayList<>();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                artists.addAll(mArtistAdapter.getItems());
+            }
+        });
+        return artists;
+    }
+
+    /**
+     * Records the artist list after every change the adapter publishes. Used on the main thread.
+     */
+    private class ListRecorder extends RecyclerView.AdapterDataObserver {
+
+        private final List<List<Artist>> mLists = new ArrayList<>();
+
+        List<List<Artist>> getLists() {
+            final List<List<Artist>> lists = new ArrayList<>();
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    lists.addAll(mLists);
+                }
+            });
+            return lists;
+        }
+
+        void clear() {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mLists.clear();
+                }
+            });
+        }
+
+        @Override
+        public void onChanged() {
+            record();
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            record();
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            record();
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            record();
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            record();
+        }
+
+        private void record() {
+            mLists.add(new ArrayList<>(mArtistAdapter.getItems()));
+        }
+    }
+}
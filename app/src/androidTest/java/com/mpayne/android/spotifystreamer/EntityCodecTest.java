@@ -0,0 +1,168 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Round trips artist and track lists through a Parcel and compares the codec with writing
+ * each entity as a Parcelable, the way a parcelable ArrayList in a Bundle is written.
+ */
+public class EntityCodecTest extends TestCase {
+
+    private static final String TAG = EntityCodecTest.class.getSimpleName();
+    private static final int LARGE_LIST_SIZE = 500;
+    private static final int RUNS = 9;
+
+    public void testTracksRoundTripThroughParcel() {
+        List<Track> tracks = createTracks(25);
+        tracks.add(new Track("noPreview", "No preview", null, new ImageVariants(new String[0], new int[0], new int[0]), null));
+
+        List<Track> decoded = EntityCodec.decodeTracks(throughParcel(EntityCodec.encodeTracks(tracks)));
+        assertNotNull(decoded);
+        assertEquals(tracks.size(), decoded.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            Track expected = tracks.get(i);
+            Track actual = decoded.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getAlbumName(), actual.getAlbumName());
+            assertEquals(expected.getPreviewUrl(), actual.getPreviewUrl());
+            assertTrue(Arrays.equals(expected.images.urls, actual.images.urls));
+            assertTrue(Arrays.equals(expected.images.widths, actual.images.widths));
+            assertTrue(Arrays.equals(expected.images.heights, actual.images.heights));
+        }
+        // Tracks of one album share their strings and images again.
+        assertSame(decoded.get(0).getAlbumName(), decoded.get(1).getAlbumName());
+        assertSame(decoded.get(0).getImages(), decoded.get(1).getImages());
+    }
+
+    public void testArtistsRoundTripThroughParcel() {
+        List<Artist> artists = createArtists(25);
+        artists.add(new Artist("noImages", null, null));
+
+        List<Artist> decoded = EntityCodec.decodeArtists(throughParcel(EntityCodec.encodeArtists(artists)));
+        assertNotNull(decoded);
+        assertEquals(artists.size(), decoded.size());
+        for (int i = 0; i < artists.size(); i++) {
+            Artist expected = artists.get(i);
+            Artist actual = decoded.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            if (expected.images == null) {
+                assertNull(actual.images);
+            } else {
+                assertTrue(Arrays.equals(expected.images.urls, actual.images.urls));
+            }
+        }
+    }
+
+    public void testUnreadableBlobsAreIgnored() {
+        assertNull(EntityCodec.decodeTracks(null));
+        assertNull(EntityCodec.decodeTracks(new byte[]{1, 2, 3}));
+        // Artists can't be read as tracks.
+        assertNull(EntityCodec.decodeTracks(EntityCodec.encodeArtists(createArtists(3))));
+
+        byte[] truncated = EntityCodec.encodeTracks(createTracks(10));
+        assertNull(EntityCodec.decodeTracks(Arrays.copyOf(truncated, truncated.length / 2)));
+    }
+
+    public void testTracksAreSmallerAndFasterThanParcelables() {
+        List<Track> tracks = createTracks(LARGE_LIST_SIZE);
+
+        long[] codecTimes = new long[RUNS];
+        long[] parcelableTimes = new long[RUNS];
+        int codecSize = 0;
+        int parcelableSize = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Parcel parcel = Parcel.obtain();
+            parcel.writeByteArray(EntityCodec.encodeTracks(tracks));
+            codecSize = parcel.dataSize();
+            parcel.setDataPosition(0);
+            assertEquals(LARGE_LIST_SIZE, EntityCodec.decodeTracks(parcel.createByteArray()).size());
+            parcel.recycle();
+            codecTimes[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parcel = Parcel.obtain();
+            parcel.writeList(tracks);
+            parcelableSize = parcel.dataSize();
+            parcel.setDataPosition(0);
+            List<Track> read = new ArrayList<>();
+            parcel.readList(read, Track.class.getClassLoader());
+            assertEquals(LARGE_LIST_SIZE, read.size());
+            parcel.recycle();
+            parcelableTimes[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(codecTimes);
+        Arrays.sort(parcelableTimes);
+        Log.i(TAG, String.format("%d tracks: codec %d bytes in %d us, parcelable %d bytes in %d us",
+                LARGE_LIST_SIZE, codecSize, codecTimes[RUNS / 2] / 1000,
+                parcelableSize, parcelableTimes[RUNS / 2] / 1000));
+        assertTrue("codec " + codecSize + " bytes, parcelable " + parcelableSize + " bytes",
+                codecSize * 2 < parcelableSize);
+    }
+
+    public void testArtistsAreSmallerThanParcelables() {
+        List<Artist> artists = createArtists(LARGE_LIST_SIZE);
+        Parcel parcel = Parcel.obtain();
+        parcel.writeByteArray(EntityCodec.encodeArtists(artists));
+        int codecSize = parcel.dataSize();
+        parcel.recycle();
+
+        parcel = Parcel.obtain();
+        parcel.writeList(artists);
+        int parcelableSize = parcel.dataSize();
+        parcel.recycle();
+        Log.i(TAG, String.format("%d artists: codec %d bytes, parcelable %d bytes",
+                LARGE_LIST_SIZE, codecSize, parcelableSize));
+        assertTrue(codecSize < parcelableSize);
+    }
+
+    private static byte[] throughParcel(byte[] blob) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeByteArray(blob);
+            parcel.setDataPosition(0);
+            return parcel.createByteArray();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<Track> createTracks(int size) {
+        List<Track> tracks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            // Top tracks often come from a handful of albums.
+            int album = i / 10;
+            tracks.add(new Track("4uLU6hMCjMI75M1A2tKUQ" + i, "Track " + i, "Album " + album,
+                    images("https://i.scdn.co/image/album" + album), "https://p.scdn.co/mp3-preview/track" + i));
+        }
+        return tracks;
+    }
+
+    private static List<Artist> createArtists(int size) {
+        List<Artist> artists = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            artists.add(new Artist("0OdUWJ0sBjDrqHygGUXeC" + i, "Artist " + i,
+                    images("https://i.scdn.co/image/artist" + i)));
+        }
+        return artists;
+    }
+
+    private static ImageVariants images(String prefix) {
+        int[] widths = {64, 300, 640};
+        int[] heights = {64, 300, 640};
+        String[] urls = new String[widths.length];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = prefix + "x" + widths[i];
+        }
+        return new ImageVariants(urls, widths, heights);
+    }
+}
@@ -0,0 +1,73 @@
+package com.mpayne.android.spotifystreamer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Canonical instances and eviction in the entity store.
+ */
+public class EntityStoreTest extends TestCase {
+
+    private static final ImageVariants NO_IMAGES = new ImageVariants(new String[0], new int[0], new int[0]);
+
+    private static Track track(String id, String previewUrl) {
+        return new Track(id, "Track " + id, "Album", NO_IMAGES, previewUrl);
+    }
+
+    public void testEqualTracksShareOneInstance() {
+        EntityStore store = new EntityStore(1024 * 1024, 1024 * 1024, 10);
+        Track first = store.putTrack(track("a", "https://p.scdn.co/mp3-preview/a"));
+        Track second = store.putTrack(track("a", "https://p.scdn.co/mp3-preview/a"));
+        assertSame(first, second);
+        assertSame(first, store.getTrack("a"));
+    }
+
+    public void testChangedTrackReplacesStoredOne() {
+        EntityStore store = new EntityStore(1024 * 1024, 1024 * 1024, 10);
+        store.putTrack(track("a", "https://p.scdn.co/mp3-preview/a"));
+        Track updated = store.putTrack(track("a", "https://p.scdn.co/mp3-preview/b"));
+        assertSame(updated, store.getTrack("a"));
+    }
+
+    public void testTopTracksAreServedFromCanonicalTracks() {
+        EntityStore store = new EntityStore(1024 * 1024, 1024 * 1024, 10);
+        Track queued = store.putTrack(track("a", "https://p.scdn.co/mp3-preview/a"));
+        store.putTopTracks("artist", Arrays.asList(track("a", "https://p.scdn.co/mp3-preview/a"),
+                track("b", "https://p.scdn.co/mp3-preview/b")));
+
+        List<Track> topTracks = store.getTopTracks("artist");
+        assertEquals(2, topTracks.size());
+        assertSame(queued, topTracks.get(0));
+        assertTrue(store.hasTopTracks("artist"));
+        assertNull(store.getTopTracks("other"));
+    }
+
+    public void testTopTracksMissAfterTrackEviction() {
+        Track track = track("a", "https://p.scdn.co/mp3-preview/a");
+        // Room for about one track.
+        EntityStore store = new EntityStore(1024, EntityStore.estimateBytes(track) + 1, 10);
+        store.putTopTracks("artist", Arrays.asList(track));
+        assertNotNull(store.getTopTracks("artist"));
+
+        store.putTrack(track("b", "https://p.scdn.co/mp3-preview/b"));
+        assertNull(store.getTopTracks("artist"));
+        assertFalse(store.hasTopTracks("artist"));
+        assertEquals(1, store.getEvictionCount());
+    }
+
+    public void testTrackBudgetIsKept() {
+        int budget = 64 * 1024;
+        EntityStore store = new EntityStore(1024, budget, 10);
+        List<Track> tracks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            tracks.add(track("track" + i, "https://p.scdn.co/mp3-preview/track" + i));
+        }
+        store.putTracks(tracks);
+        assertTrue(store.getEvictionCount() > 0);
+        assertNotNull(store.getTrack("track1999"));
+        assertNull(store.getTrack("track0"));
+    }
+}
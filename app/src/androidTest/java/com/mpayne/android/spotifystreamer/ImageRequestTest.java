@@ -0,0 +1,210 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.util.Patterns;
+import android.widget.FrameLayout;
+
+import com.squareup.picasso.Picasso;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Image descriptors built with row models, and the cost of ArtistAdapter.onBindViewHolder
+ * compared with the bind it replaced, which picked and validated the url on every bind.
+ */
+public class ImageRequestTest extends InstrumentationTestCase {
+
+    private static final String TAG = ImageRequestTest.class.getSimpleName();
+    private static final int THUMBNAIL_SIZE = 150;
+    private static final int ROWS = 50;
+    // View holders a scrolling list cycles through, about a screen of rows.
+    private static final int VIEW_HOLDERS = 10;
+    // Roughly a few seconds of flinging through a list.
+    private static final int BINDS = 2000;
+    private static final int RUNS = 7;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    public void testInvalidUrlsAreDroppedWhenBuilt() {
+        ImageVariants images = new ImageVariants(Arrays.asList(
+                image("not a url", 640),
+                image("https://i.scdn.co/image/1a2b3c4d5e6f7a8b9c0d1e2f3a4b5c6d7e8f9a0b", 300),
+                image("", 64)));
+        assertEquals(1, images.size());
+        assertEquals("https://i.scdn.co/image/1a2b3c4d5e6f7a8b9c0d1e2f3a4b5c6d7e8f9a0b", images.getUrl(0));
+    }
+
+    public void testThumbnailPicksCoveringVariant() {
+        ImageVariants images = albumImages(0);
+        ImageRequest request = ImageRequest.thumbnail(images, THUMBNAIL_SIZE);
+        assertEquals(images.select(THUMBNAIL_SIZE, THUMBNAIL_SIZE), request.url);
+        assertEquals(THUMBNAIL_SIZE, request.width);
+        assertEquals(THUMBNAIL_SIZE, request.height);
+        assertEquals(R.drawable.grey_square, request.placeholderResId);
+    }
+
+    public void testMissingImagesOnlyShowPlaceholder() {
+        ImageRequest request = ImageRequest.thumbnail(new ImageVariants((List<Image>) null), THUMBNAIL_SIZE);
+        assertNull(request.url);
+        assertEquals(R.drawable.grey_square, request.placeholderResId);
+        assertNull(ImageRequest.artwork(null, 640, 640).url);
+        assertEquals(ImageRequest.NO_PLACEHOLDER, ImageRequest.artwork(null, 640, 640).placeholderResId);
+    }
+
+    public void testBindCostBeforeAndAfter() throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        final ImageLoader.ListTag imageTag = new ImageLoader.ListTag();
+        final List<Artist> artists = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            artists.add(new Artist("artist" + i, "Artist " + i, albumImages(i)));
+        }
+        final ArtistAdapter[] adapter = new ArtistAdapter[1];
+        final ArtistAdapter.ViewHolder[] viewHolders = new ArtistAdapter.ViewHolder[VIEW_HOLDERS];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                adapter[0] = new ArtistAdapter(context, imageTag, new ArtistAdapter.Listener() {
+                    @Override
+                    public void onArtistClicked(Artist artist) {}
+
+                    @Override
+                    public void onArtistPressed(Artist artist) {}
+
+                    @Override
+                    public void onArtistsChanged() {}
+                });
+                adapter[0].setArtists(artists);
+                FrameLayout parent = new FrameLayout(context);
+                for (int i = 0; i < VIEW_HOLDERS; i++) {
+                    viewHolders[i] = adapter[0].onCreateViewHolder(parent, 0);
+                }
+            }
+        });
+        awaitRows(adapter[0]);
+        final int imageSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
+
+        // Scrolling: each view holder is bound to a different row every time.
+        final long[] scrollBefore = new long[RUNS];
+        final long[] scrollAfter = new long[RUNS];
+        // Rebinding rows in place, e.g. after notifyItemChanged.
+        final long[] rebindBefore = new long[RUNS];
+        final long[] rebindAfter = new long[RUNS];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int run = 0; run < RUNS; run++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < BINDS; i++) {
+                        bindBefore(viewHolders[i % VIEW_HOLDERS], artists.get(i % ROWS), imageSize, imageTag);
+                    }
+                    scrollBefore[run] = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int i = 0; i < BINDS; i++) {
+                        adapter[0].onBindViewHolder(viewHolders[i % VIEW_HOLDERS], i % ROWS);
+                    }
+                    scrollAfter[run] = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int i = 0; i < BINDS; i++) {
+                        bindBefore(viewHolders[i % VIEW_HOLDERS], artists.get(i % VIEW_HOLDERS), imageSize, imageTag);
+                    }
+                    rebindBefore[run] = System.nanoTime() - start;
+
+                    // Start from holders bound to their rows, as a list on screen would be.
+                    for (int i = 0; i < VIEW_HOLDERS; i++) {
+                        adapter[0].onBindViewHolder(viewHolders[i], i);
+                    }
+                    start = System.nanoTime();
+                    for (int i = 0; i < BINDS; i++) {
+                        adapter[0].onBindViewHolder(viewHolders[i % VIEW_HOLDERS], i % VIEW_HOLDERS);
+                    }
+                    rebindAfter[run] = System.nanoTime() - start;
+                }
+            }
+        });
+        imageTag.cancelRequests(context);
+
+        long scrollBeforeNanos = median(scrollBefore) / BINDS;
+        long scrollAfterNanos = median(scrollAfter) / BINDS;
+        long rebindBeforeNanos = median(rebindBefore) / BINDS;
+        long rebindAfterNanos = median(rebindAfter) / BINDS;
+        Log.i(TAG, String.format("onBindViewHolder while scrolling: before %d ns, after %d ns",
+                scrollBeforeNanos, scrollAfterNanos));
+        Log.i(TAG, String.format("onBindViewHolder rebinding in place: before %d ns, after %d ns",
+                rebindBeforeNanos, rebindAfterNanos));
+        // Rebinding a row keeps its image request instead of starting it again.
+        assertTrue(rebindAfterNanos < rebindBeforeNanos);
+    }
+
+    /**
+     * The artist row bind before image requests were built with rows: pick the variant,
+     * match it against WEB_URL and start loading it, every time.
+     */
+    private static void bindBefore(ArtistAdapter.ViewHolder viewHolder, Artist artist, int imageSize, Object tag) {
+        viewHolder.artistName.setText(artist.name);
+        String url = artist.images == null ? null : artist.images.select(imageSize, imageSize);
+        if (url != null && !Patterns.WEB_URL.matcher(url).matches()) {
+            url = null;
+        }
+        Picasso picasso = ImageLoader.getPicasso(viewHolder.artistImage.getContext());
+        if (url == null) {
+            picasso.cancelRequest(viewHolder.artistImage);
+            viewHolder.artistImage.setImageResource(R.drawable.grey_square);
+            return;
+        }
+        picasso.load(url)
+                .resize(imageSize, imageSize)
+                .centerCrop()
+                .config(Bitmap.Config.RGB_565)
+                .placeholder(R.drawable.grey_square)
+                .tag(tag)
+                .into(viewHolder.artistImage);
+        // The old bind kept no record of what it bound.
+        viewHolder.boundImage = null;
+    }
+
+    private void awaitRows(final ArtistAdapter adapter) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        final int[] count = new int[1];
+        while (count[0] < ROWS) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    count[0] = adapter.getItemCount();
+                }
+            });
+        }
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static ImageVariants albumImages(int album) {
+        List<Image> images = new ArrayList<>();
+        for (int size : new int[]{640, 300, 64}) {
+            // Nothing listens on the discard port, so loads fail fast without leaving the device.
+            images.add(image("http://127.0.0.1:9/image/album" + album + "x" + size, size));
+        }
+        return new ImageVariants(images);
+    }
+
+    private static Image image(String url, int size) {
+        Image image = new Image();
+        image.url = url;
+        image.width = size;
+        image.height = size;
+        return image;
+    }
+}
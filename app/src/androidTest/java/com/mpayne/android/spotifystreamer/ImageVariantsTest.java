@@ -0,0 +1,97 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Selection over image lists as returned by the Spotify Web API.
+ */
+public class ImageVariantsTest extends TestCase {
+
+    // Album images are listed largest first.
+    private static final List<Image> ALBUM_IMAGES = Arrays.asList(
+            image("https://i.scdn.co/image/8e1b1d0f7c3a2b4e6d9f0a1c2b3d4e5f6a7b8c9d", 640, 640),
+            image("https://i.scdn.co/image/1a2b3c4d5e6f7a8b9c0d1e2f3a4b5c6d7e8f9a0b", 300, 300),
+            image("https://i.scdn.co/image/0f9e8d7c6b5a4f3e2d1c0b9a8f7e6d5c4b3a2f1e", 64, 64));
+
+    // Artist images are often not square.
+    private static final List<Image> ARTIST_IMAGES = Arrays.asList(
+            image("https://i.scdn.co/image/afcd616e1ef2d2786f47b3b4a8a6aeea24a72adc", 1000, 1333),
+            image("https://i.scdn.co/image/f1a8fdd15b4d2ec8ed2c8b2e3f1d7cc6d9a9df12", 640, 853),
+            image("https://i.scdn.co/image/bf2e5ab23c6d2fa6e4cf9b2a6e4b5a3c3e4c1d8a", 200, 267),
+            image("https://i.scdn.co/image/f5d9a2c6e5b3a1d8c7e6f4a2b3c1d9e8f7a6b5c4", 64, 85));
+
+    private static Image image(String url, Integer width, Integer height) {
+        Image image = new Image();
+        image.url = url;
+        image.width = width;
+        image.height = height;
+        return image;
+    }
+
+    public void testSelectsSmallestCoveringAlbumImage() {
+        ImageVariants variants = new ImageVariants(ALBUM_IMAGES);
+        assertEquals(ALBUM_IMAGES.get(2).url, variants.select(60, 60));
+        assertEquals(ALBUM_IMAGES.get(1).url, variants.select(180, 180));
+        assertEquals(ALBUM_IMAGES.get(0).url, variants.select(600, 600));
+    }
+
+    public void testSelectsSmallestCoveringArtistImage() {
+        ImageVariants variants = new ImageVariants(ARTIST_IMAGES);
+        assertEquals(ARTIST_IMAGES.get(3).url, variants.select(64, 64));
+        assertEquals(ARTIST_IMAGES.get(2).url, variants.select(180, 180));
+        assertEquals(ARTIST_IMAGES.get(1).url, variants.select(640, 640));
+    }
+
+    public void testFallsBackToLargestImage() {
+        ImageVariants variants = new ImageVariants(ALBUM_IMAGES);
+        assertEquals(ALBUM_IMAGES.get(0).url, variants.select(1200, 1200));
+        assertEquals(ALBUM_IMAGES.get(0).url, variants.getLargestUrl());
+        assertEquals(ALBUM_IMAGES.get(2).url, variants.getSmallestUrl());
+    }
+
+    public void testOrderIndependent() {
+        List<Image> reversed = new ArrayList<>(ALBUM_IMAGES);
+        Collections.reverse(reversed);
+        ImageVariants variants = new ImageVariants(reversed);
+        assertEquals(ALBUM_IMAGES.get(1).url, variants.select(180, 180));
+    }
+
+    public void testImagesWithoutDimensionsAreTreatedAsLarge() {
+        List<Image> images = Arrays.asList(
+                image("https://i.scdn.co/image/unknown", null, null),
+                ALBUM_IMAGES.get(2));
+        ImageVariants variants = new ImageVariants(images);
+        assertEquals(ALBUM_IMAGES.get(2).url, variants.select(60, 60));
+        assertEquals("https://i.scdn.co/image/unknown", variants.select(300, 300));
+    }
+
+    public void testEmpty() {
+        ImageVariants variants = new ImageVariants(new ArrayList<Image>());
+        assertTrue(variants.isEmpty());
+        assertNull(variants.select(60, 60));
+        assertTrue(new ImageVariants((List<Image>) null).isEmpty());
+    }
+
+    public void testParcelRoundTrip() {
+        ImageVariants variants = new ImageVariants(ARTIST_IMAGES);
+        Parcel parcel = Parcel.obtain();
+        try {
+            variants.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            ImageVariants copy = new ImageVariants(parcel);
+            assertEquals(variants.select(180, 180), copy.select(180, 180));
+            assertEquals(variants.getLargestUrl(), copy.getLargestUrl());
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Loopback HTTP or HTTPS stand-in for the Spotify search endpoint. Each query is answered with
+ * a page of artists named after it, and top track requests with an empty list. Answers can be
+ * held back to keep searches in flight, and requests the client abandons while held are counted.
+ * Artists can also be given images, served from the same server.
+ */
+public class LocalSearchServer {
+
+    private static final int PAGE_SIZE = 20;
+    private static final int POLL_MILLIS = 20;
+    private static final int IMAGE_SIZE = 300;
+
+    private final ServerSocket mServerSocket;
+    private final String mScheme;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> mSearchCounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> mAbandonedCounts = new ConcurrentHashMap<>();
+    private final AtomicInteger mSearchCount = new AtomicInteger();
+    private final List<Integer> mOffsets = Collections.synchronizedList(new ArrayList<Integer>());
+    private final Set<Integer> mRepeatedPages = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile boolean mHeld;
+    private volatile int mTotal = PAGE_SIZE;
+    private volatile byte[] mImage;
+
+    public LocalSearchServer() throws IOException {
+        this(null);
+    }
+
+    /**
+     * Serves HTTPS with the context's key if given, otherwise plain HTTP.
+     */
+    public LocalSearchServer(SSLContext sslContext) throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        if (sslContext == null) {
+            mServerSocket = new ServerSocket(0, 8, loopback);
+            mScheme = "http";
+        } else {
+            mServerSocket = sslContext.getServerSocketFactory().createServerSocket(0, 8, loopback);
+            mScheme = "https";
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, LocalSearchServer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the endpoint to build a SpotifyClient with, in place of the Spotify Web API.
+     */
+    public String getEndpoint() {
+        return mScheme + "://127.0.0.1:" + mServerSocket.getLocalPort() + "/v1";
+    }
+
+    /**
+     * Sets how many artists match each query across all pages.
+     */
+    public void setTotal(int total) {
+        mTotal = total;
+    }
+
+    /**
+     * Gives every artist a square PNG image, like the ones Spotify lists for artists.
+     */
+    public void serveImages() {
+        Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+        bitmap.recycle();
+        mImage = png.toByteArray();
+    }
+
+    /**
+     * Answers the page at the offset with the artists of the first page, as a server whose
+     * ranking shifted between requests would.
+     */
+    public void repeatPage(int offset) {
+        mRepeatedPages.add(offset);
+    }
+
+    /**
+     * Holds search answers until {@link #release()}, so searches stay in flight.
+     */
+    public void hold() {
+        mHeld = true;
+    }
+
+    public void release() {
+        mHeld = false;
+    }
+
+    /**
+     * Returns how many connections clients have opened, each with its own handshake over HTTPS.
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public int getSearchCount() {
+        return mSearchCount.get();
+    }
+
+    public int getSearchCount(String query) {
+        return get(mSearchCounts, query);
+    }
+
+    /**
+     * Returns the offset of every search answered so far, in order.
+     */
+    public List<Integer> getOffsets() {
+        synchronized (mOffsets) {
+            return new ArrayList<>(mOffsets);
+        }
+    }
+
+    /**
+     * Returns how many searches for the query the client closed before they were answered.
+     */
+    public int getAbandonedCount(String query) {
+        return get(mAbandonedCounts, query);
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answers requests on one kept-alive connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    // Headers are ignored and requests have no body.
+                }
+                String[] parts = requestLine.split(" ");
+                Uri uri = Uri.parse(parts.length > 1 ? parts[1] : "/");
+                String body;
+                if (uri.getPath() != null && uri.getPath().startsWith("/image/") && mImage != null) {
+                    out.write(("HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: image/png\r\n"
+                            + "Content-Length: " + mImage.length + "\r\n\r\n").getBytes("US-ASCII"));
+                    out.write(mImage);
+                    out.flush();
+                    continue;
+                } else if ("/v1/search".equals(uri.getPath())) {
+                    String query = uri.getQueryParameter("q");
+                    count(mSearchCounts, query);
+                    mSearchCount.incrementAndGet();
+                    if (!awaitRelease(socket, reader)) {
+                        count(mAbandonedCounts, query);
+                        return;
+                    }
+                    String offsetParameter = uri.getQueryParameter("offset");
+                    int offset = offsetParameter == null ? 0 : Integer.parseInt(offsetParameter);
+                    mOffsets.add(offset);
+                    body = searchResponse(query, offset);
+                } else {
+                    body = "{\"tracks\": []}";
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                out.write(("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: application/json; charset=utf-8\r\n"
+                        + "Content-Length: " + bytes.length + "\r\n\r\n").getBytes("US-ASCII"));
+                out.write(bytes);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client closed the connection.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Waits while answers are held, watching for the client to close the connection.
+     *
+     * @return false if the client gave up on the request
+     */
+    private boolean awaitRelease(Socket socket, BufferedReader reader) throws IOException {
+        if (!mHeld) {
+            return true;
+        }
+        socket.setSoTimeout(POLL_MILLIS);
+        try {
+            while (mHeld) {
+                try {
+                    if (reader.read() == -1) {
+                        return false;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Still connected.
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            // Reset by the client.
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(0);
+            }
+        }
+    }
+
+    private String searchResponse(String query, int offset) {
+        int total = mTotal;
+        int first = mRepeatedPages.contains(offset) ? 0 : offset;
+        StringBuilder json = new StringBuilder("{\"artists\": {\"items\": [");
+        for (int i = first; i < Math.min(first + PAGE_SIZE, total); i++) {
+            if (i > first) {
+                json.append(", ");
+            }
+            String id = Uri.encode(query) + "-" + i;
+            json.append("{\"id\": \"").append(id)
+                    .append("\", \"name\": \"").append(query).append(' ').append(i)
+                    .append("\", \"images\": [");
+            if (mImage != null) {
+                json.append("{\"url\": \"").append(getImageUrl(id)).append("\", \"width\": ").append(IMAGE_SIZE)
+                        .append(", \"height\": ").append(IMAGE_SIZE).append('}');
+            }
+            json.append("]}");
+        }
+        return json.append("], \"offset\": ").append(offset)
+                .append(", \"total\": ").append(total).append("}}").toString();
+    }
+
+    private String getImageUrl(String id) {
+        return mScheme + "://127.0.0.1:" + mServerSocket.getLocalPort() + "/image/" + id;
+    }
+
+    /**
+     * Polls until the condition holds or the timeout passes.
+     *
+     * @return whether the condition held in time
+     */
+    public static boolean await(Condition condition, long timeoutMillis) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (!condition.isMet()) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                return false;
+            }
+            SystemClock.sleep(POLL_MILLIS);
+        }
+        return true;
+    }
+
+    public interface Condition {
+        boolean isMet();
+    }
+
+    private static void count(ConcurrentHashMap<String, AtomicInteger> counts, String key) {
+        counts.putIfAbsent(key, new AtomicInteger());
+        counts.get(key).incrementAndGet();
+    }
+
+    private static int get(ConcurrentHashMap<String, AtomicInteger> counts, String key) {
+        AtomicInteger count = counts.get(key);
+        return count == null ? 0 : count.get();
+    }
+}
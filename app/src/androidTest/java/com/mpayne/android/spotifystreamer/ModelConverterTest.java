@@ -0,0 +1,205 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.ArtistsPager;
+import kaaes.spotify.webapi.android.models.Tracks;
+import retrofit.converter.ConversionException;
+import retrofit.converter.GsonConverter;
+import retrofit.mime.TypedByteArray;
+
+/**
+ * Maps Spotify responses with the streaming converter and compares parse time and allocations
+ * with Gson into the kaaes models followed by conversion, over payloads in the API's shape.
+ */
+public class ModelConverterTest extends InstrumentationTestCase {
+
+    private static final String TAG = ModelConverterTest.class.getSimpleName();
+    private static final String MIME_TYPE = "application/json; charset=utf-8";
+    private static final int WARM_UP_RUNS = 20;
+    private static final int RUNS = 51;
+    private static final Type TOP_TRACKS_TYPE = new TypeToken<List<Track>>() {}.getType();
+
+    private final GsonConverter mGsonConverter = new GsonConverter(new Gson());
+    private final ModelConverter mModelConverter = new ModelConverter(mGsonConverter);
+    private byte[] mSearchPayload;
+    private byte[] mTopTracksPayload;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSearchPayload = readAsset("spotify/search-artists.json");
+        mTopTracksPayload = readAsset("spotify/top-tracks.json");
+    }
+
+    public void testMapsArtistSearchLikeGson() throws Exception {
+        ArtistPage page = (ArtistPage) mModelConverter.fromBody(body(mSearchPayload), ArtistPage.class);
+        ArtistsPager pager = (ArtistsPager) mGsonConverter.fromBody(body(mSearchPayload), ArtistsPager.class);
+
+        assertEquals(pager.artists.total, page.getTotal());
+        assertEquals(pager.artists.items.size(), page.getArtists().size());
+        for (int i = 0; i < page.getArtists().size(); i++) {
+            Artist expected = new Artist(pager.artists.items.get(i));
+            Artist actual = page.getArtists().get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            assertTrue(Arrays.equals(expected.images.urls, actual.images.urls));
+            assertTrue(Arrays.equals(expected.images.widths, actual.images.widths));
+            assertTrue(Arrays.equals(expected.images.heights, actual.images.heights));
+        }
+    }
+
+    public void testMapsTopTracksLikeGson() throws Exception {
+        List<Track> tracks = readTopTracks();
+        Tracks kaaesTracks = (Tracks) mGsonConverter.fromBody(body(mTopTracksPayload), Tracks.class);
+
+        assertEquals(kaaesTracks.tracks.size(), tracks.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            Track expected = new Track(kaaesTracks.tracks.get(i));
+            Track actual = tracks.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getAlbumName(), actual.getAlbumName());
+            assertEquals(expected.getPreviewUrl(), actual.getPreviewUrl());
+            assertTrue(Arrays.equals(expected.images.urls, actual.images.urls));
+        }
+    }
+
+    public void testOtherTypesAreDelegated() throws Exception {
+        Object tracks = mModelConverter.fromBody(body(mTopTracksPayload), Tracks.class);
+        assertTrue(tracks instanceof Tracks);
+    }
+
+    public void testMalformedResponseFails() {
+        try {
+            mModelConverter.fromBody(body("{\"artists\": {\"items\": [".getBytes()), ArtistPage.class);
+            fail();
+        } catch (ConversionException e) {
+            // Expected.
+        }
+        try {
+            mModelConverter.fromBody(body("{\"error\": {\"status\": 400}}".getBytes()), TOP_TRACKS_TYPE);
+            fail();
+        } catch (ConversionException e) {
+            // Expected.
+        }
+    }
+
+    public void testStreamingAllocatesLessThanGson() throws Exception {
+        Measurement searchGson = measure(new Parse() {
+            @Override
+            public void run() throws Exception {
+                ArtistsPager pager = (ArtistsPager) mGsonConverter.fromBody(body(mSearchPayload), ArtistsPager.class);
+                List<Artist> artists = new ArrayList<>();
+                for (kaaes.spotify.webapi.android.models.Artist artist : pager.artists.items) {
+                    artists.add(new Artist(artist));
+                }
+            }
+        });
+        Measurement searchStreaming = measure(new Parse() {
+            @Override
+            public void run() throws Exception {
+                mModelConverter.fromBody(body(mSearchPayload), ArtistPage.class);
+            }
+        });
+        Measurement tracksGson = measure(new Parse() {
+            @Override
+            public void run() throws Exception {
+                Tracks tracks = (Tracks) mGsonConverter.fromBody(body(mTopTracksPayload), Tracks.class);
+                List<Track> trackList = new ArrayList<>();
+                for (kaaes.spotify.webapi.android.models.Track track : tracks.tracks) {
+                    trackList.add(new Track(track));
+                }
+            }
+        });
+        Measurement tracksStreaming = measure(new Parse() {
+            @Override
+            public void run() throws Exception {
+                readTopTracks();
+            }
+        });
+        Log.i(TAG, "Search (" + mSearchPayload.length + " bytes): gson " + searchGson
+                + ", streaming " + searchStreaming);
+        Log.i(TAG, "Top tracks (" + mTopTracksPayload.length + " bytes): gson " + tracksGson
+                + ", streaming " + tracksStreaming);
+        assertTrue(searchStreaming.allocatedBytes < searchGson.allocatedBytes);
+        assertTrue(tracksStreaming.allocatedBytes < tracksGson.allocatedBytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Track> readTopTracks() throws ConversionException {
+        return (List<Track>) mModelConverter.fromBody(body(mTopTracksPayload), TOP_TRACKS_TYPE);
+    }
+
+    private static TypedByteArray body(byte[] payload) {
+        return new TypedByteArray(MIME_TYPE, payload);
+    }
+
+    private byte[] readAsset(String name) throws IOException {
+        InputStream in = getInstrumentation().getContext().getAssets().open(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private interface Parse {
+        void run() throws Exception;
+    }
+
+    /**
+     * Median parse time and bytes allocated by one parse on the calling thread.
+     */
+    private static class Measurement {
+        long medianMicros;
+        long allocatedBytes;
+
+        @Override
+        public String toString() {
+            return medianMicros + " us, " + allocatedBytes + " bytes allocated";
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Measurement measure(Parse parse) throws Exception {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            parse.run();
+        }
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            parse.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+
+        Measurement measurement = new Measurement();
+        measurement.medianMicros = times[RUNS / 2] / 1000;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        parse.run();
+        measurement.allocatedBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        return measurement;
+    }
+}
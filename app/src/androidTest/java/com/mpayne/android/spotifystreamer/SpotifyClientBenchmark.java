@@ -0,0 +1,113 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Per-request latency of searches through the shared client against a local HTTPS stand-in,
+ * on a cold connection (new TCP connection and full TLS handshake) and on a warm pooled one.
+ */
+public class SpotifyClientBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = SpotifyClientBenchmark.class.getSimpleName();
+    private static final String KEY_STORE = "tls/localhost.p12";
+    private static final char[] KEY_STORE_PASSWORD = "localhost".toCharArray();
+    private static final int RUNS = 15;
+
+    private LocalSearchServer mServer;
+    private SpotifyClient mClient;
+    private int mQueries;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSearchServer(createSslContext());
+        Context context = getInstrumentation().getTargetContext();
+        mClient = new SpotifyClient(context, mServer.getEndpoint(),
+                new File(context.getCacheDir(), "spotify-http-" + TAG));
+        mClient.getHttpClient().setSslSocketFactory(createSslContext().getSocketFactory());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testWarmConnectionsAreFasterThanCold() throws Exception {
+        long[] cold = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            // Drop pooled connections and cached TLS sessions so the next search starts from scratch.
+            mClient.getHttpClient().getConnectionPool().evictAll();
+            mClient.getHttpClient().setSslSocketFactory(createSslContext().getSocketFactory());
+            cold[i] = timeSearch();
+        }
+        assertEquals(RUNS, mServer.getConnectionCount());
+
+        // One search to open the pooled connection, then every search reuses it.
+        timeSearch();
+        int connections = mServer.getConnectionCount();
+        long[] warm = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            warm[i] = timeSearch();
+        }
+        assertEquals(connections, mServer.getConnectionCount());
+
+        Arrays.sort(cold);
+        Arrays.sort(warm);
+        long coldMedian = cold[RUNS / 2] / 1000;
+        long warmMedian = warm[RUNS / 2] / 1000;
+        Log.i(TAG, String.format("Search latency: cold %d us (min %d, max %d), warm %d us (min %d, max %d)",
+                coldMedian, cold[0] / 1000, cold[RUNS - 1] / 1000,
+                warmMedian, warm[0] / 1000, warm[RUNS - 1] / 1000));
+        assertTrue(warmMedian < coldMedian);
+    }
+
+    /**
+     * Times one search for a query not searched before, so the response cache can't answer it.
+     */
+    private long timeSearch() {
+        String query = TAG + System.nanoTime() + "-" + mQueries++;
+        long start = System.nanoTime();
+        ArtistPage page = mClient.getModelService().searchArtists(query);
+        long elapsed = System.nanoTime() - start;
+        assertFalse(page.getArtists().isEmpty());
+        return elapsed;
+    }
+
+    /**
+     * Creates a context holding the stand-in's self-signed key, trusted on the client side too.
+     * Each one has its own TLS session cache.
+     */
+    private SSLContext createSslContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getInstrumentation().getContext().getAssets().open(KEY_STORE);
+        try {
+            keyStore.load(in, KEY_STORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        String alias = keyStore.aliases().nextElement();
+        trustStore.setCertificateEntry(alias, keyStore.getCertificate(alias));
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+}
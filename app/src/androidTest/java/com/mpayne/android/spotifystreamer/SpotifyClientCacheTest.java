@@ -0,0 +1,71 @@
+package com.mpayne.android.spotifystreamer;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Cache hit counting against a loopback stand-in, with fetches made the way the search and
+ * top track tasks make them: a cache-only probe, then a network request if it was not fresh.
+ */
+public class SpotifyClientCacheTest extends AndroidTestCase {
+
+    private LocalSearchServer mServer;
+    private SpotifyClient mClient;
+    private String mPrefix;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSearchServer();
+        mClient = new SpotifyClient(getContext(), mServer.getEndpoint(),
+                new File(getContext().getCacheDir(), "spotify-http-" + getName()));
+        mPrefix = "c" + SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testProbeAndRevalidationCountAsOneFetch() {
+        fetch(mPrefix + "a");
+        assertEquals(1, mServer.getSearchCount());
+        assertEquals(1, mClient.getCacheRequestCount());
+        assertEquals(0, mClient.getCacheHitCount());
+
+        // Fresh in the cache now, so the probe answers it.
+        fetch(mPrefix + "a");
+        assertEquals(1, mServer.getSearchCount());
+        assertEquals(2, mClient.getCacheRequestCount());
+        assertEquals(1, mClient.getCacheHitCount());
+        assertEquals(0.5f, mClient.getCacheHitRatio());
+    }
+
+    public void testMissedProbeWithoutRevalidationIsStillCounted() {
+        // Offline: the probe misses and nothing follows it.
+        probe(mPrefix + "offline");
+        fetch(mPrefix + "b");
+        assertEquals(2, mClient.getCacheRequestCount());
+        assertEquals(0, mClient.getCacheHitCount());
+    }
+
+    private void fetch(String query) {
+        if (probe(query) == null || SpotifyClient.isLastResponseStale()) {
+            mClient.getModelService().searchArtists(query);
+        }
+    }
+
+    private ArtistPage probe(String query) {
+        SpotifyClient.setCacheControl(SpotifyClient.CACHE_ONLY_ALLOW_STALE);
+        try {
+            return mClient.getModelService().searchArtists(query);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            SpotifyClient.clearCacheControl();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Requests to the loopback proxy, which only answers URLs it handed out itself, and the
+ * ranges it passes through from upstream.
+ */
+public class AudioCacheProxyTest extends AndroidTestCase {
+
+    private LocalAudioServer mServer;
+    private AudioCacheProxy mProxy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalAudioServer(500, 0);
+        mProxy = new AudioCacheProxy(new File(getContext().getCacheDir(), getName()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProxy.close();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testServesProxyUrls() throws IOException {
+        String url = mServer.getUrl("allowed");
+        assertEquals(HttpURLConnection.HTTP_OK, fetch(mProxy.getProxyUrl(url)));
+        assertEquals(1, mServer.getRequestCount("allowed"));
+    }
+
+    public void testRefusesUrlsItDidNotMake() throws IOException {
+        String url = mServer.getUrl("forbidden");
+        Uri proxyUrl = Uri.parse(mProxy.getProxyUrl(url));
+        String root = proxyUrl.buildUpon().path("/").build().toString();
+        String guessedToken = proxyUrl.buildUpon().path("/00000000000000000000000000000000").build().toString();
+
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, fetch(root));
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, fetch(guessedToken));
+        // Nothing was fetched on the caller's behalf.
+        assertEquals(0, mServer.getRequestCount("forbidden"));
+    }
+
+    public void testChunkedRangeKeepsUpstreamContentRange() throws IOException {
+        mServer.serveRangesChunked("chunked", true);
+        int length = mServer.getClipLength();
+        HttpURLConnection connection = openRange(mProxy.getProxyUrl(mServer.getUrl("chunked")), 100);
+        try {
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+            assertEquals("bytes 100-" + (length - 1) + "/" + length, connection.getHeaderField("Content-Range"));
+            assertEquals(length - 100, drain(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public void testChunkedRangeWithoutContentRangeOmitsIt() throws IOException {
+        mServer.serveRangesChunked("unknown", false);
+        int length = mServer.getClipLength();
+        HttpURLConnection connection = openRange(mProxy.getProxyUrl(mServer.getUrl("unknown")), 100);
+        try {
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+            // No range the proxy could vouch for, rather than a malformed one.
+            assertNull(connection.getHeaderField("Content-Range"));
+            assertEquals(length - 100, drain(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection openRange(String url, long rangeStart) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+        return connection;
+    }
+
+    private static int drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        in.close();
+        return total;
+    }
+
+    private static int fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                drain(connection.getInputStream());
+            }
+            return code;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kaaes.spotify.webapi.android.models.AlbumSimple;
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Measures the silence between tracks against a local server that takes a while to respond.
+ * The first track pays the full buffering time; later ones should start almost immediately.
+ */
+public class GaplessPlaybackTest extends AndroidTestCase {
+
+    private static final int CLIP_MILLIS = 2000;
+    private static final long BUFFERING_MILLIS = 1500;
+    private static final long TIMEOUT_SECONDS = 20;
+
+    private LocalAudioServer mServer;
+    private final Map<String, Long> mStartTimes = new HashMap<>();
+    private CountDownLatch mStarted;
+
+    // Records when each track first reports playing.
+    private final MusicPlayerService.PlaybackStateListener mListener = new MusicPlayerService.PlaybackStateListener() {
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            Track track = state.getTrack();
+            if (track == null || !state.isPlaying()) {
+                return;
+            }
+            synchronized (mStartTimes) {
+                if (!mStartTimes.containsKey(track.getId())) {
+                    mStartTimes.put(track.getId(), SystemClock.elapsedRealtime());
+                    mStarted.countDown();
+                }
+            }
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            ((MusicPlayerService.LocalBinder) binder).getService().addPlaybackStateListener(mListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalAudioServer(CLIP_MILLIS, BUFFERING_MILLIS);
+        getContext().bindService(new Intent(getContext(), MusicPlayerService.class), mConnection,
+                Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().unbindService(mConnection);
+        getContext().stopService(new Intent(getContext(), MusicPlayerService.class));
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testCompletionHandsOffWithoutBuffering() throws Exception {
+        mStarted = new CountDownLatch(2);
+        long requested = SystemClock.elapsedRealtime();
+        playTracks("first", "second");
+        assertTrue(mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        long firstStart = mStartTimes.get("first");
+        long gap = mStartTimes.get("second") - firstStart - CLIP_MILLIS;
+        assertTrue("first track should wait for buffering", firstStart - requested >= BUFFERING_MILLIS);
+        assertTrue("gap was " + gap + "ms", gap < BUFFERING_MILLIS / 3);
+    }
+
+    public void testPlayNextUsesPreparedPlayer() throws Exception {
+        mStarted = new CountDownLatch(1);
+        playTracks("first", "second");
+        assertTrue(mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Give the next track time to buffer, then skip to it before the first one ends.
+        Thread.sleep(BUFFERING_MILLIS + 200);
+        mStarted = new CountDownLatch(1);
+        long requested = SystemClock.elapsedRealtime();
+        sendAction(MusicPlayerService.ACTION_PLAY_NEXT_TRACK);
+        assertTrue(mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        long delay = mStartTimes.get("second") - requested;
+        assertTrue("skip took " + delay + "ms", delay < BUFFERING_MILLIS / 3);
+    }
+
+    private void playTracks(String... ids) {
+        ArrayList<Track> tracks = new ArrayList<>();
+        for (String id : ids) {
+            tracks.add(track(id));
+        }
+        Intent intent = new Intent(getContext(), MusicPlayerService.class)
+                .setAction(MusicPlayerService.ACTION_PLAY_TRACK)
+                .putExtra(MusicPlayerService.EXTRA_QUEUE_ID, PlaybackQueue.create("Artist", tracks).getId())
+                .putExtra(MusicPlayerService.EXTRA_TRACK_POSITION, 0);
+        getContext().startService(intent);
+    }
+
+    private void sendAction(String action) {
+        getContext().startService(new Intent(getContext(), MusicPlayerService.class).setAction(action));
+    }
+
+    private Track track(String id) {
+        kaaes.spotify.webapi.android.models.Track track = new kaaes.spotify.webapi.android.models.Track();
+        track.id = id;
+        track.name = id;
+        track.album = new AlbumSimple();
+        track.album.name = "Album";
+        track.album.images = new ArrayList<Image>();
+        track.preview_url = mServer.getUrl(id);
+        return new Track(track);
+    }
+}
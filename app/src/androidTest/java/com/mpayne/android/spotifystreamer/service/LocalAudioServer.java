@@ -0,0 +1,219 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loopback HTTP stand-in for the preview CDN. Serves a generated WAV clip after a fixed delay
+ * so tests can tell buffering time apart from playback. Individual clips can be made to fail
+ * with an HTTP status, to stall without ever answering, or to answer ranges in chunks.
+ */
+public class LocalAudioServer {
+
+    private static final int SAMPLE_RATE = 22050;
+    private static final int STATUS_STALL = 0;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-");
+
+    private final ServerSocket mServerSocket;
+    private final long mDelayMillis;
+    private final byte[] mClip;
+    private final Map<String, Integer> mStatuses = new ConcurrentHashMap<>();
+    // Clips answered in ranges without a Content-Length, mapped to whether a Content-Range is sent.
+    private final Map<String, Boolean> mChunkedRanges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> mRequestCounts = new ConcurrentHashMap<>();
+
+    public LocalAudioServer(int clipMillis, long delayMillis) throws IOException {
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mDelayMillis = delayMillis;
+        mClip = createWav(clipMillis);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, LocalAudioServer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getUrl(String name) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + name + ".wav";
+    }
+
+    /**
+     * Answers requests for the named clip with the given status and no body.
+     */
+    public void setStatus(String name, int status) {
+        mStatuses.put(name, status);
+    }
+
+    /**
+     * Accepts requests for the named clip but never answers them.
+     */
+    public void stall(String name) {
+        mStatuses.put(name, STATUS_STALL);
+    }
+
+    /**
+     * Answers range requests for the named clip with 206 and a chunked body, so the length is
+     * only given by the Content-Range header, if at all.
+     */
+    public void serveRangesChunked(String name, boolean withContentRange) {
+        mChunkedRanges.put(name, withContentRange);
+    }
+
+    public int getClipLength() {
+        return mClip.length;
+    }
+
+    public int getRequestCount(String name) {
+        AtomicInteger count = mRequestCounts.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String name = parseName(reader.readLine());
+            int rangeStart = -1;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                // Only Range is read, and only for clips served in chunks.
+                Matcher matcher = RANGE_PATTERN.matcher(line);
+                if (line.regionMatches(true, 0, "Range:", 0, 6) && matcher.find()) {
+                    rangeStart = Integer.parseInt(matcher.group(1));
+                }
+            }
+            countRequest(name);
+            Integer status = mStatuses.get(name);
+            if (status != null && status == STATUS_STALL) {
+                // Hold the connection open until the client gives up.
+                while (reader.read() != -1) {
+                    // Discard.
+                }
+                return;
+            }
+            Thread.sleep(mDelayMillis);
+            OutputStream out = socket.getOutputStream();
+            if (status != null) {
+                out.write(("HTTP/1.1 " + status + " Error\r\n"
+                        + "Content-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+            Boolean withContentRange = mChunkedRanges.get(name);
+            if (withContentRange != null && rangeStart >= 0) {
+                writeChunkedRange(out, rangeStart, withContentRange);
+                return;
+            }
+            String headers = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: audio/wav\r\n"
+                    + "Content-Length: " + mClip.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            out.write(headers.getBytes("US-ASCII"));
+            out.write(mClip);
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // The player closed the connection.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private void writeChunkedRange(OutputStream out, int rangeStart, boolean withContentRange)
+            throws IOException {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 206 Partial Content\r\n")
+                .append("Content-Type: audio/wav\r\n")
+                .append("Transfer-Encoding: chunked\r\n");
+        if (withContentRange) {
+            headers.append("Content-Range: bytes ").append(rangeStart).append('-')
+                    .append(mClip.length - 1).append('/').append(mClip.length).append("\r\n");
+        }
+        out.write(headers.append("Connection: close\r\n\r\n").toString().getBytes("US-ASCII"));
+        int chunkSize = 1024;
+        for (int offset = rangeStart; offset < mClip.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, mClip.length - offset);
+            out.write((Integer.toHexString(length) + "\r\n").getBytes("US-ASCII"));
+            out.write(mClip, offset, length);
+            out.write("\r\n".getBytes("US-ASCII"));
+        }
+        out.write("0\r\n\r\n".getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * Returns the clip name from a request line such as "GET /name.wav HTTP/1.1".
+     */
+    private static String parseName(String requestLine) {
+        if (requestLine == null) {
+            return "";
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return "";
+        }
+        String path = parts[1];
+        int start = path.lastIndexOf('/') + 1;
+        int end = path.endsWith(".wav") ? path.length() - 4 : path.length();
+        return start <= end ? path.substring(start, end) : "";
+    }
+
+    private void countRequest(String name) {
+        mRequestCounts.putIfAbsent(name, new AtomicInteger());
+        mRequestCounts.get(name).incrementAndGet();
+    }
+
+    /**
+     * Creates a 16-bit mono PCM WAV with a quiet tone.
+     */
+    private static byte[] createWav(int clipMillis) {
+        int samples = SAMPLE_RATE * clipMillis / 1000;
+        ByteBuffer buffer = ByteBuffer.allocate(44 + samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36 + samples * 2)
+                .put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '})
+                .putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16)
+                .put(new byte[]{'d', 'a', 't', 'a'}).putInt(samples * 2);
+        for (int i = 0; i < samples; i++) {
+            buffer.putShort((short) (Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) * 1000));
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,221 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kaaes.spotify.webapi.android.models.AlbumSimple;
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Injects missing previews and stalled connections through a local server and checks that the
+ * service retries what may recover, skips what can't, and never gets stuck.
+ */
+public class PlaybackFailureTest extends AndroidTestCase {
+
+    private static final int CLIP_MILLIS = 4000;
+    private static final int PREPARE_TIMEOUT_MILLIS = 1000;
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    private LocalAudioServer mServer;
+    private MusicPlayerService mService;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+
+    // How many times each track has started playing.
+    private final Map<String, Integer> mStarts = new HashMap<>();
+    private String mPlayingId;
+
+    private final MusicPlayerService.PlaybackStateListener mListener = new MusicPlayerService.PlaybackStateListener() {
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            String playingId = state.isPlaying() && state.getTrack() != null ? state.getTrack().getId() : null;
+            synchronized (mStarts) {
+                if (playingId != null && !playingId.equals(mPlayingId)) {
+                    Integer starts = mStarts.get(playingId);
+                    mStarts.put(playingId, starts == null ? 1 : starts + 1);
+                    mStarts.notifyAll();
+                }
+                mPlayingId = playingId;
+            }
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((MusicPlayerService.LocalBinder) binder).getService();
+            mService.addPlaybackStateListener(mListener);
+            mService.setPrepareTimeoutMillis(PREPARE_TIMEOUT_MILLIS);
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalAudioServer(CLIP_MILLIS, 0);
+        getContext().bindService(new Intent(getContext(), MusicPlayerService.class), mConnection,
+                Context.BIND_AUTO_CREATE);
+        assertTrue(mConnected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                mService.removePlaybackStateListener(mListener);
+            }
+        });
+        getContext().unbindService(mConnection);
+        getContext().stopService(new Intent(getContext(), MusicPlayerService.class));
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testMissingPreviewIsSkippedAndNeverRetried() throws Exception {
+        mServer.setStatus("missing", 404);
+        Track missing = track("missing");
+        PlaybackQueue queue = play(0, missing, track("ok"));
+        awaitStarts("ok", 1);
+        assertFalse(queue.isPlayable(missing));
+        int requests = mServer.getRequestCount("missing");
+        assertTrue(requests > 0);
+
+        // Choosing it again goes straight to the next track without a request.
+        play(queue, 0);
+        awaitStarts("ok", 2);
+        assertEquals(requests, mServer.getRequestCount("missing"));
+    }
+
+    public void testTrackWithoutPreviewIsSkipped() throws Exception {
+        Track noPreview = track("noPreview", null);
+        PlaybackQueue queue = play(0, noPreview, track("ok"));
+        awaitStarts("ok", 1);
+        assertFalse(queue.isPlayable(noPreview));
+    }
+
+    public void testStalledTrackIsRetriedThenSkipped() throws Exception {
+        mServer.stall("stalled");
+        int retriesBefore = mService.getMetrics().getRetryCount();
+        Track stalled = track("stalled");
+        long requested = SystemClock.elapsedRealtime();
+        PlaybackQueue queue = play(0, stalled, track("ok"));
+        awaitStarts("ok", 1);
+
+        long elapsed = SystemClock.elapsedRealtime() - requested;
+        long backoff = 0;
+        for (int i = 0; i < MusicPlayerService.MAX_PREPARE_RETRIES; i++) {
+            backoff += MusicPlayerService.RETRY_BACKOFF_MILLIS << i;
+        }
+        long attempts = MusicPlayerService.MAX_PREPARE_RETRIES + 1;
+        assertTrue("gave up after " + elapsed + "ms", elapsed >= attempts * PREPARE_TIMEOUT_MILLIS + backoff);
+        assertEquals(MusicPlayerService.MAX_PREPARE_RETRIES, mService.getMetrics().getRetryCount() - retriesBefore);
+        assertTrue(mServer.getRequestCount("stalled") >= attempts);
+        // A stall may clear up, so the track stays in rotation.
+        assertTrue(queue.isPlayable(stalled));
+    }
+
+    public void testStopsWhenNothingIsPlayable() throws Exception {
+        mServer.setStatus("first", 404);
+        mServer.setStatus("second", 410);
+        Track first = track("first");
+        Track second = track("second");
+        PlaybackQueue queue = play(0, first, second);
+
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        while (queue.isPlayable(first) || queue.isPlayable(second)) {
+            assertTrue("tracks were not marked unplayable", SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(50);
+        }
+        int requests = mServer.getRequestCount("first") + mServer.getRequestCount("second");
+        Thread.sleep(PREPARE_TIMEOUT_MILLIS);
+        assertEquals(requests, mServer.getRequestCount("first") + mServer.getRequestCount("second"));
+        assertFalse(mService.getPlaybackState().isPlaying());
+    }
+
+    private PlaybackQueue play(int position, Track... tracks) {
+        List<Track> list = new ArrayList<>();
+        for (Track track : tracks) {
+            list.add(track);
+        }
+        PlaybackQueue queue = PlaybackQueue.create("Artist", list);
+        play(queue, position);
+        return queue;
+    }
+
+    private void play(PlaybackQueue queue, int position) {
+        Intent intent = new Intent(getContext(), MusicPlayerService.class)
+                .setAction(MusicPlayerService.ACTION_PLAY_TRACK)
+                .putExtra(MusicPlayerService.EXTRA_QUEUE_ID, queue.getId())
+                .putExtra(MusicPlayerService.EXTRA_TRACK_POSITION, position);
+        getContext().startService(intent);
+    }
+
+    private void awaitStarts(String id, int count) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        synchronized (mStarts) {
+            while (mStarts.get(id) == null || mStarts.get(id) < count) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                assertTrue(id + " did not start", remaining > 0);
+                mStarts.wait(remaining);
+            }
+        }
+    }
+
+    private Track track(String id) {
+        return track(id, mServer.getUrl(id));
+    }
+
+    private Track track(String id, String previewUrl) {
+        kaaes.spotify.webapi.android.models.Track track = new kaaes.spotify.webapi.android.models.Track();
+        track.id = id;
+        track.name = id;
+        track.album = new AlbumSimple();
+        track.album.name = "Album";
+        track.album.images = new ArrayList<Image>();
+        track.preview_url = previewUrl;
+        return new Track(track);
+    }
+
+    private void runOnMain(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    error.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+}
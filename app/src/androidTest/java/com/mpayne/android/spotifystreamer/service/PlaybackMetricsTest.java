@@ -0,0 +1,28 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Timing of starts, including skips that never start anything.
+ */
+public class PlaybackMetricsTest extends TestCase {
+
+    public void testDiscardedActionIsNotTimed() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.begin(PlaybackMetrics.ACTION_NEXT, 0);
+        metrics.discard();
+        // A later start finishing must not be recorded as the discarded skip.
+        metrics.finish();
+        assertEquals(-1, metrics.getPercentile(PlaybackMetrics.ACTION_NEXT + ".prepared", 50));
+    }
+
+    public void testStartAfterDiscardIsTimedOnItsOwn() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.begin(PlaybackMetrics.ACTION_PREVIOUS, 0);
+        metrics.discard();
+        metrics.begin(PlaybackMetrics.ACTION_PLAY, 0);
+        metrics.finish();
+        assertEquals(-1, metrics.getPercentile(PlaybackMetrics.ACTION_PREVIOUS + ".prepared", 50));
+        assertTrue(metrics.getPercentile(PlaybackMetrics.ACTION_PLAY + ".prepared", 50) >= 0);
+    }
+}
@@ -0,0 +1,175 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kaaes.spotify.webapi.android.models.AlbumSimple;
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Tap-to-prepareAsync latency for small and large queues passed by id, logged next to the
+ * parcel round trip a track-list extra used to add to every play intent.
+ */
+public class PlaybackQueueBenchmark extends AndroidTestCase {
+
+    private static final String TAG = PlaybackQueueBenchmark.class.getSimpleName();
+    private static final int RUNS = 5;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private LocalAudioServer mServer;
+    private volatile MusicPlayerService mService;
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((MusicPlayerService.LocalBinder) binder).getService();
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Never answers within a run, so only the time to reach prepareAsync is measured.
+        mServer = new LocalAudioServer(1000, TIMEOUT_MILLIS);
+        getContext().bindService(new Intent(getContext(), MusicPlayerService.class), mConnection,
+                Context.BIND_AUTO_CREATE);
+        assertTrue(mConnected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().unbindService(mConnection);
+        getContext().stopService(new Intent(getContext(), MusicPlayerService.class));
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testTapToPrepareLatency() throws Exception {
+        int smallIntentBytes = benchmark(10);
+        int largeIntentBytes = benchmark(500);
+        // The play intent no longer grows with the queue.
+        assertEquals(smallIntentBytes, largeIntentBytes);
+    }
+
+    /**
+     * Logs median latencies for a queue of the given size and returns the play intent's parcel size.
+     */
+    private int benchmark(int size) throws Exception {
+        ArrayList<Track> tracks = createTracks(size);
+        long[] latencies = new long[RUNS];
+        Intent intent = null;
+        for (int i = 0; i < RUNS; i++) {
+            long tapped = System.nanoTime();
+            PlaybackQueue queue = PlaybackQueue.create("Artist", tracks);
+            intent = new Intent(getContext(), MusicPlayerService.class)
+                    .setAction(MusicPlayerService.ACTION_PLAY_TRACK)
+                    .putExtra(MusicPlayerService.EXTRA_QUEUE_ID, queue.getId())
+                    .putExtra(MusicPlayerService.EXTRA_TRACK_POSITION, size / 2);
+            getContext().startService(intent);
+            latencies[i] = awaitPrepare(tapped) - tapped;
+        }
+
+        Intent legacyIntent = new Intent(intent).putParcelableArrayListExtra("extra_track_list", tracks);
+        long[] legacyCosts = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            roundTrip(legacyIntent);
+            legacyCosts[i] = System.nanoTime() - start;
+        }
+
+        int intentBytes = parcelSize(intent);
+        Log.i(TAG, String.format("%d tracks: tap-to-prepareAsync %.2f ms, intent %d bytes;"
+                        + " track-list extra would add %d bytes and %.2f ms per parcel round trip",
+                size, median(latencies) / 1e6, intentBytes, parcelSize(legacyIntent) - intentBytes,
+                median(legacyCosts) / 1e6));
+        return intentBytes;
+    }
+
+    private long awaitPrepare(long after) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (System.nanoTime() < deadline) {
+            long prepared = mService.getLastPrepareRequestedNanos();
+            if (prepared > after) {
+                return prepared;
+            }
+            Thread.sleep(1);
+        }
+        fail("prepareAsync was not reached");
+        return 0;
+    }
+
+    private static void roundTrip(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            Intent copy = Intent.CREATOR.createFromParcel(parcel);
+            copy.setExtrasClassLoader(Track.class.getClassLoader());
+            copy.getParcelableArrayListExtra("extra_track_list");
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int parcelSize(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private ArrayList<Track> createTracks(int size) {
+        ArrayList<Track> tracks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            kaaes.spotify.webapi.android.models.Track track = new kaaes.spotify.webapi.android.models.Track();
+            track.id = "track" + i;
+            track.name = "Track " + i;
+            track.album = new AlbumSimple();
+            track.album.name = "Album " + (i / 10);
+            track.album.images = createImages(i / 10);
+            track.preview_url = mServer.getUrl(track.id);
+            tracks.add(new Track(track));
+        }
+        return tracks;
+    }
+
+    private static List<Image> createImages(int album) {
+        List<Image> images = new ArrayList<>();
+        for (int size : new int[]{640, 300, 64}) {
+            Image image = new Image();
+            image.url = "https://i.scdn.co/image/album" + album + "x" + size;
+            image.width = size;
+            image.height = size;
+            images.add(image);
+        }
+        return images;
+    }
+}
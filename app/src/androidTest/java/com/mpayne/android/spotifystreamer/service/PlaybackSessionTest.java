@@ -0,0 +1,109 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mpayne.android.spotifystreamer.ImageVariants;
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Round trips playback session snapshots and times restoring a large queue.
+ */
+public class PlaybackSessionTest extends AndroidTestCase {
+
+    private static final String TAG = PlaybackSessionTest.class.getSimpleName();
+    private static final int LARGE_QUEUE_SIZE = 1000;
+    private static final int RUNS = 5;
+    // Restoring has to fit in a frame since it happens while the player screen opens.
+    private static final long MAX_RESTORE_MILLIS = 16;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), PlaybackSessionTest.class.getSimpleName());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        List<Track> tracks = createTracks(3);
+        List<String> artistNames = Arrays.asList("Artist", "Artist", "Related");
+        new PlaybackSession("seed", "Artist", tracks, artistNames, 2, 12345, 30000).write(mFile);
+
+        PlaybackSession session = PlaybackSession.read(mFile);
+        assertNotNull(session);
+        assertEquals("seed", session.getSeedArtistId());
+        assertEquals("Artist", session.getArtistName());
+        assertEquals(artistNames, session.getArtistNames());
+        assertEquals(2, session.getTrackPosition());
+        assertEquals(12345, session.getProgress());
+        assertEquals(30000, session.getDuration());
+        assertEquals(tracks.size(), session.getTracks().size());
+        for (int i = 0; i < tracks.size(); i++) {
+            Track expected = tracks.get(i);
+            Track actual = session.getTracks().get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getAlbumName(), actual.getAlbumName());
+            assertEquals(expected.getPreviewUrl(), actual.getPreviewUrl());
+            assertEquals(expected.getImages().size(), actual.getImages().size());
+            assertEquals(expected.getImages().select(300, 300), actual.getImages().select(300, 300));
+        }
+    }
+
+    public void testMissingOrForeignSnapshotIsIgnored() throws Exception {
+        assertNull(PlaybackSession.read(mFile));
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[]{0, 0, 0, 1, 0, 0, 0, 1});
+        out.close();
+        assertNull(PlaybackSession.read(mFile));
+    }
+
+    public void testLargeQueueRestoresWithinAFrame() throws Exception {
+        new PlaybackSession("seed", "Artist", createTracks(LARGE_QUEUE_SIZE),
+                Collections.nCopies(LARGE_QUEUE_SIZE, "Artist"), LARGE_QUEUE_SIZE / 2, 1000, 30000).write(mFile);
+
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            PlaybackSession session = PlaybackSession.read(mFile);
+            PlaybackQueue.restore(session.getSeedArtistId(), session.getArtistName(), session.getTracks(),
+                    session.getArtistNames());
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        long medianMillis = times[RUNS / 2] / 1000000;
+        Log.i(TAG, String.format("Restored %d tracks (%d bytes) in %d ms", LARGE_QUEUE_SIZE, mFile.length(), medianMillis));
+        assertTrue("restore took " + medianMillis + "ms", medianMillis <= MAX_RESTORE_MILLIS);
+    }
+
+    private static List<Track> createTracks(int size) {
+        List<Track> tracks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int album = i / 10;
+            String[] urls = new String[3];
+            int[] dimensions = {64, 300, 640};
+            for (int j = 0; j < urls.length; j++) {
+                urls[j] = "https://i.scdn.co/image/album" + album + "x" + dimensions[j];
+            }
+            ImageVariants images = new ImageVariants(urls, dimensions, dimensions);
+            tracks.add(new Track("track" + i, "Track " + i, "Album " + album, images,
+                    "https://p.scdn.co/mp3-preview/track" + i));
+        }
+        return tracks;
+    }
+}
@@ -0,0 +1,171 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kaaes.spotify.webapi.android.models.AlbumSimple;
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Counts the service's re-sync wakeups while a track plays with and without a UI listening.
+ */
+public class PlaybackTickerTest extends AndroidTestCase {
+
+    private static final int CLIP_MILLIS = 8000;
+    private static final int SYNC_INTERVAL_MILLIS = 100;
+    private static final long OBSERVE_MILLIS = 1000;
+    private static final long TIMEOUT_SECONDS = 20;
+
+    private LocalAudioServer mServer;
+    private MusicPlayerService mService;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private CountDownLatch mPlaying = new CountDownLatch(1);
+    private final AtomicInteger mSnapshotCount = new AtomicInteger();
+
+    private final MusicPlayerService.PlaybackStateListener mListener = new MusicPlayerService.PlaybackStateListener() {
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            mSnapshotCount.incrementAndGet();
+            if (state.isPlaying()) {
+                mPlaying.countDown();
+            }
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((MusicPlayerService.LocalBinder) binder).getService();
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalAudioServer(CLIP_MILLIS, 0);
+        getContext().bindService(new Intent(getContext(), MusicPlayerService.class), mConnection,
+                Context.BIND_AUTO_CREATE);
+        assertTrue(mConnected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                mService.removePlaybackStateListener(mListener);
+            }
+        });
+        getContext().unbindService(mConnection);
+        getContext().stopService(new Intent(getContext(), MusicPlayerService.class));
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testTickerStopsWithoutListeners() throws Exception {
+        addListener(SYNC_INTERVAL_MILLIS);
+        play();
+        assertTrue(mPlaying.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        int ticksBefore = mService.getTickCount();
+        Thread.sleep(OBSERVE_MILLIS);
+        assertTrue("ticker should run while a UI listens", mService.getTickCount() > ticksBefore);
+
+        // Detach the UI; playback continues but the service should stop waking up.
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                mService.removePlaybackStateListener(mListener);
+            }
+        });
+        int ticksDetached = mService.getTickCount();
+        Thread.sleep(OBSERVE_MILLIS);
+        assertEquals(0, mService.getTickCount() - ticksDetached);
+        assertTrue(mService.getPlaybackState().isPlaying());
+
+        // Reattaching delivers a catch-up snapshot straight away and resumes the ticker.
+        int snapshotsBefore = mSnapshotCount.get();
+        addListener(SYNC_INTERVAL_MILLIS);
+        assertEquals(snapshotsBefore + 1, mSnapshotCount.get());
+        int ticksReattached = mService.getTickCount();
+        Thread.sleep(OBSERVE_MILLIS);
+        assertTrue(mService.getTickCount() > ticksReattached);
+    }
+
+    public void testEventOnlyListenerNeverTicks() throws Exception {
+        addListener(0);
+        play();
+        assertTrue(mPlaying.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        int ticks = mService.getTickCount();
+        Thread.sleep(OBSERVE_MILLIS);
+        assertEquals(0, mService.getTickCount() - ticks);
+    }
+
+    private void addListener(final int syncIntervalMillis) throws InterruptedException {
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                mService.addPlaybackStateListener(mListener, syncIntervalMillis);
+            }
+        });
+    }
+
+    private void play() {
+        kaaes.spotify.webapi.android.models.Track track = new kaaes.spotify.webapi.android.models.Track();
+        track.id = "clip";
+        track.name = "clip";
+        track.album = new AlbumSimple();
+        track.album.name = "Album";
+        track.album.images = new ArrayList<Image>();
+        track.preview_url = mServer.getUrl(track.id);
+        ArrayList<Track> tracks = new ArrayList<>();
+        tracks.add(new Track(track));
+
+        Intent intent = new Intent(getContext(), MusicPlayerService.class)
+                .setAction(MusicPlayerService.ACTION_PLAY_TRACK)
+                .putExtra(MusicPlayerService.EXTRA_QUEUE_ID, PlaybackQueue.create("Artist", tracks).getId())
+                .putExtra(MusicPlayerService.EXTRA_TRACK_POSITION, 0);
+        getContext().startService(intent);
+    }
+
+    private void runOnMain(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    error.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+}
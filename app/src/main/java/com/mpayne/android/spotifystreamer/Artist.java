@@ -18,7 +18,7 @@ package com.mpayne.android.spotifystreamer;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import kaaes.spotify.webapi.android.models.Image;
+import java.util.Locale;
 
 /**
  * Defines artist information for display and implements Parcelable to retain data on screen rotation.
@@ -37,9 +37,8 @@ public class Artist implements Parcelable {
 
     String name;
     String id;
-    String imageUrlSmall;
     //List<String> trackNames;
-    String imageUrlLarge;
+    ImageVariants images;
 
     /**
      * Constructor taking in kaaes.spotify.webapi.android.models.Artist
@@ -49,52 +48,19 @@ public class Artist implements Parcelable {
         super();
         name = artist.name;
         id = artist.id;
-        if (!artist.images.isEmpty()) {
-            if(artist.images.size() > 1)
-            {
-                // Iterate and use two smallest image sizes
-                //imageUrlSmall
-                int image1Dimension = 0;
-                int image2Dimension = 0;
-                int temp;
-                for (Image image : artist.images) {
-                    temp = image.height * image.width;
-                    // set image1Dimension first time
-                    if(image1Dimension == 0) {
-                        image1Dimension = temp;
-                        imageUrlSmall = image.url;
-                    }
-                    // set image1Dimension to smallest possible
-                    if(temp < image1Dimension) {
-                        image1Dimension = temp;
-                        imageUrlSmall = image.url;
-                    }
-                    // set image2Dimension to smallest possible but larger than image1Dimension
-                    if(temp > image1Dimension) {
-                        // set image2Dimension first time
-                        if(image2Dimension == 0) {
-                            image2Dimension = temp;
-                            imageUrlLarge = image.url;
-                        }
-                        if(temp < image2Dimension) {
-                            image2Dimension = temp;
-                            imageUrlLarge = image.url;
-                        }
-                    }
-                }
-            } else {
-                imageUrlSmall = artist.images.get(0).url;
-                imageUrlLarge = imageUrlSmall;
-            }
+        images = new ImageVariants(artist.images);
+    }
 
-        }
+    public Artist(String id, String name, ImageVariants images) {
+        this.id = id;
+        this.name = name;
+        this.images = images;
     }
 
     public Artist(Parcel in) {
         name = in.readString();
         id = in.readString();
-        imageUrlSmall = in.readString();
-        imageUrlLarge = in.readString();
+        images = in.readParcelable(ImageVariants.class.getClassLoader());
     }
 
     @Override
@@ -106,11 +72,27 @@ public class Artist implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(name);
         dest.writeString(id);
-        dest.writeString(imageUrlSmall);
-        dest.writeString(imageUrlLarge);
+        dest.writeParcelable(images, flags);
     }
 
     public String getName() {
         return name;
     }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Checks whether the name or one of its words starts with the normalized search keys.
+     *
+     * @param query case-folded and trimmed search keys
+     */
+    public boolean matches(String query) {
+        if (name == null) {
+            return false;
+        }
+        String normalizedName = name.toLowerCase(Locale.US);
+        return normalizedName.startsWith(query) || normalizedName.contains(" " + query);
+    }
 }
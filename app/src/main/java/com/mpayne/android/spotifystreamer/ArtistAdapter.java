@@ -16,58 +16,200 @@
 package com.mpayne.android.spotifystreamer;
 
 import android.content.Context;
-import android.util.Patterns;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.squareup.picasso.Picasso;
-
-import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 
 /**
  * Adapter for populating artist list view.
  */
-public class ArtistAdapter extends ArrayAdapter<Artist> {
+public class ArtistAdapter extends DiffListAdapter<Artist, ArtistAdapter.ArtistRow, ArtistAdapter.ViewHolder> {
+
+    /**
+     * Receives row clicks and presses and learns when the shown artists change.
+     */
+    public interface Listener {
+        void onArtistClicked(Artist artist);
+
+        void onArtistPressed(Artist artist);
+
+        void onArtistsChanged();
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    // Tag of this list's thumbnail requests.
+    private final Object mImageTag;
+
+    // Thumbnail size in pixels used to pick an image variant.
+    private final int mImageSize;
+
+    public ArtistAdapter(Context context, Object imageTag, Listener listener) {
+        super(ArtistAdapter.class.getSimpleName());
+        mContext = context;
+        mImageTag = imageTag;
+        mListener = listener;
+        mImageSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
+    }
+
+    /**
+     * Replaces the artists, keeping rows for artists that are still listed.
+     *
+     * @return boolean true if the artists changed
+     */
+    public boolean setArtists(List<Artist> newArtists) {
+        if (hasSameArtists(newArtists)) {
+            return false;
+        }
+        submitList(newArtists);
+        return true;
+    }
 
-    ArrayList<Artist> artists;
+    /**
+     * Appends a page of artists, skipping ones already listed.
+     *
+     * @return boolean true if any artists were added
+     */
+    public boolean appendArtists(List<Artist> page) {
+        List<Artist> artists = getItems();
+        Set<String> ids = new HashSet<>();
+        for (Artist artist : artists) {
+            ids.add(artist.id);
+        }
+        boolean changed = false;
+        for (Artist artist : page) {
+            if (ids.add(artist.id)) {
+                artists.add(artist);
+                changed = true;
+            }
+        }
+        if (changed) {
+            submitList(artists);
+        }
+        return changed;
+    }
 
-    public ArtistAdapter(Context context, int resourceID, ArrayList<Artist> artists) {
-        super(context, 0, artists);
-        this.artists = artists;
+    /**
+     * Narrows the current artists to those matching the normalized search keys.
+     */
+    public void retainMatching(String query) {
+        List<Artist> artists = getItems();
+        boolean changed = false;
+        Iterator<Artist> iterator = artists.iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().matches(query)) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            submitList(artists);
+        }
+    }
+
+    private boolean hasSameArtists(List<Artist> newArtists) {
+        List<Artist> artists = getItems();
+        if (artists.size() != newArtists.size()) {
+            return false;
+        }
+        for (int i = 0; i < artists.size(); i++) {
+            String id = artists.get(i).id;
+            if (id == null || !id.equals(newArtists.get(i).id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected ArtistRow createRow(Artist artist) {
+        return new ArtistRow(artist, ImageRequest.thumbnail(artist.images, mImageSize));
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ViewHolder viewHolder;
-
-        if (convertView == null) {
-            convertView = LayoutInflater.from(getContext()).inflate(R.layout.listitem_artist, parent, false);
-            viewHolder = new ViewHolder(convertView);
-            convertView.setTag(viewHolder);
-        } else {
-            viewHolder = (ViewHolder) convertView.getTag();
+    public boolean hasSameContent(ArtistRow oldRow, ArtistRow newRow) {
+        return TextUtils.equals(oldRow.name, newRow.name) && TextUtils.equals(oldRow.image.url, newRow.image.url);
+    }
+
+    @Override
+    protected void onItemsApplied(boolean changed) {
+        if (changed) {
+            mListener.onArtistsChanged();
         }
+    }
 
-        Artist artist = artists.get(position);
-        viewHolder.artistName.setText(artist.name);
-        if(artist.imageUrlSmall != null && Patterns.WEB_URL.matcher(artist.imageUrlSmall).matches())
-        {
-            Picasso.with(getContext()).load(artist.imageUrlSmall).into(viewHolder.artistImage);
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.listitem_artist, parent, false);
+        final ViewHolder viewHolder = new ViewHolder(view);
+
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = viewHolder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    mListener.onArtistClicked(getItem(position));
+                }
+            }
+        });
+
+        // Report presses so work for the row can start before the click is delivered.
+        view.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                int position = viewHolder.getAdapterPosition();
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN && position != RecyclerView.NO_POSITION) {
+                    mListener.onArtistPressed(getItem(position));
+                }
+                return false;
+            }
+        });
+
+        return viewHolder;
+    }
+
+    @Override
+    protected void onBindRow(ViewHolder viewHolder, ArtistRow row) {
+        viewHolder.artistName.setText(row.name);
+        // Rebinding the same row keeps the image already loading or shown.
+        if (viewHolder.boundImage != row.image) {
+            viewHolder.boundImage = row.image;
+            ImageLoader.loadThumbnail(viewHolder.artistImage, row.image, mImageTag);
         }
+    }
 
-        return convertView;
+    /**
+     * Artist name and the thumbnail picked for the row size.
+     */
+    static class ArtistRow extends DiffListAdapter.Row<Artist> {
+        final String name;
+        final ImageRequest image;
+
+        ArtistRow(Artist artist, ImageRequest image) {
+            super(artist, artist.id);
+            this.name = artist.name;
+            this.image = image;
+        }
     }
 
-    private static class ViewHolder {
+    static class ViewHolder extends RecyclerView.ViewHolder {
         TextView artistName;
         ImageView artistImage;
+        ImageRequest boundImage;
 
         public ViewHolder(View view) {
+            super(view);
             artistName = (TextView) view.findViewById(R.id.textview_artist_name);
             artistImage = (ImageView) view.findViewById(R.id.imageview_artist);
         }
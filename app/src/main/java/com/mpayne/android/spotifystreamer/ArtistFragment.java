@@ -20,21 +20,22 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.SearchView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import kaaes.spotify.webapi.android.SpotifyApi;
 import kaaes.spotify.webapi.android.SpotifyService;
-import kaaes.spotify.webapi.android.models.ArtistsPager;
 
 
 /**
@@ -46,10 +47,15 @@ public class ArtistFragment extends Fragment {
     private final String KEY_ARTIST = "artist";
     private final String KEY_SEARCH = "search";
     private final String KEY_MESSAGE = "message";
+    private final String KEY_TOTAL = "total";
+    private final String KEY_NEXT_OFFSET = "nextOffset";
     private final String NO_RESULTS_FOUND_MESSAGE_PRE = "No results found for '";
     private final String NO_RESULTS_FOUND_MESSAGE_POST = "'. Please refine your search.";
     private final String NETWORK_NOT_AVAILABLE_MESSAGE = "Network is not available. Please try again later.";
     private final String SPOTIFY_NOT_AVAILABLE_MESSAGE = "We are experiencing issues. Please try again later.";
+    private final int PREFETCH_VISIBLE_ROWS = 5;
+    private final int PAGE_SIZE = 20;
+    private final int PAGE_PREFETCH_ROWS = 5;
 
 
     private ArtistAdapter mArtistAdapter;
@@ -57,6 +63,22 @@ public class ArtistFragment extends Fragment {
     private TextView mMessageTextView;
     private String mMessage;
 
+    private final Handler mSearchHandler = new Handler();
+    private int mSearchDebounceMillis;
+    private Runnable mPendingSearch;
+    private SearchArtistTask mSearchArtistTask;
+    private SpotifyClient mSpotifyClient;
+    private TrackPrefetcher mTrackPrefetcher;
+    private RecyclerView mRecyclerView;
+    private LinearLayoutManager mLayoutManager;
+    private final ImageLoader.ListTag mImageTag = new ImageLoader.ListTag();
+
+    // Total artists matching mSearch and the page currently loading, if any.
+    private int mTotal;
+    // Server offset of the next page. Pages can repeat artists, so it runs ahead of the list.
+    private int mNextOffset;
+    private LoadArtistPageTask mLoadArtistPageTask;
+
     /**
      * Interface activities must implement when using this fragment.
      */
@@ -69,18 +91,52 @@ public class ArtistFragment extends Fragment {
                              Bundle savedInstanceState) {
 
         View rootView = inflater.inflate(R.layout.fragment_artist, container, false);
-        ListView listView = (ListView) rootView.findViewById(R.id.listview_artist);
+        mRecyclerView = (RecyclerView) rootView.findViewById(R.id.recyclerview_artist);
+        mLayoutManager = new LinearLayoutManager(getActivity());
+        mRecyclerView.setLayoutManager(mLayoutManager);
+        mRecyclerView.setHasFixedSize(true);
         mMessageTextView = (TextView) rootView.findViewById(R.id.textview_message);
 
-        mArtistAdapter = new ArtistAdapter(getActivity(), R.layout.listitem_artist, new ArrayList<Artist>());
-        listView.setAdapter(mArtistAdapter);
+        mArtistAdapter = new ArtistAdapter(getActivity(), mImageTag, new ArtistAdapter.Listener() {
+
+            // Let activity handle when artist is selected
+            @Override
+            public void onArtistClicked(Artist artist) {
+                ((Callback) getActivity()).onArtistSelected(artist);
+            }
+
+            // Prefetch top tracks for a pressed row before the click is delivered.
+            @Override
+            public void onArtistPressed(Artist artist) {
+                mTrackPrefetcher.prefetchNow(artist);
+            }
+
+            // Prefetch for rows on screen once the changed rows are laid out.
+            @Override
+            public void onArtistsChanged() {
+                mRecyclerView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetchVisibleArtists();
+                    }
+                });
+            }
+        });
+        mRecyclerView.setAdapter(mArtistAdapter);
+
+        mSearchDebounceMillis = getResources().getInteger(R.integer.search_debounce_millis);
+        mSpotifyClient = SpotifyClient.getInstance(getActivity());
+        mTrackPrefetcher = new TrackPrefetcher(mSpotifyClient);
 
         // Check savedInstanceState for search text and artist list on orientation change
         if(savedInstanceState != null) {
             mSearch = savedInstanceState.getString(KEY_SEARCH);
             mMessage = savedInstanceState.getString(KEY_MESSAGE);
-            if(savedInstanceState.containsKey(KEY_ARTIST)) {
-                mArtistAdapter.addAll(savedInstanceState.<Artist>getParcelableArrayList(KEY_ARTIST));
+            mTotal = savedInstanceState.getInt(KEY_TOTAL);
+            mNextOffset = savedInstanceState.getInt(KEY_NEXT_OFFSET);
+            List<Artist> savedArtists = EntityCodec.decodeArtists(savedInstanceState.getByteArray(KEY_ARTIST));
+            if(savedArtists != null) {
+                mArtistAdapter.setArtists(EntityStore.getInstance().putArtists(savedArtists));
             }
         } else {
             // Default is empty search and message
@@ -109,28 +165,51 @@ public class ArtistFragment extends Fragment {
             }
         });
 
-        // Let activity handle when artist is selected
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Pause thumbnails while flinging.
+        mRecyclerView.addOnScrollListener(mImageTag);
+        // Prefetch top tracks for rows on screen once scrolling settles.
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
 
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                Artist artist = mArtistAdapter.getItem(position);
-                ((Callback) getActivity()).onArtistSelected(artist);
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prefetchVisibleArtists();
+                }
             }
 
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // Load the next page as the user nears the end of the list.
+                int itemCount = mArtistAdapter.getItemCount();
+                if (itemCount > 0 && mLayoutManager.findLastVisibleItemPosition() >= itemCount - 1 - PAGE_PREFETCH_ROWS) {
+                    loadNextPage();
+                }
+            }
         });
 
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        // Nothing left to display results in, so drop pending and in-flight work.
+        cancelSearch();
+        mTrackPrefetcher.shutdown();
+        mImageTag.cancelRequests(getActivity());
+        super.onDestroyView();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         // Save artist list and search key data if available.
         if (mArtistAdapter.getCount() > 0) {
-            outState.putParcelableArrayList(KEY_ARTIST, mArtistAdapter.artists);
+            // Paged results can grow long, so they go in one compact blob.
+            outState.putByteArray(KEY_ARTIST, EntityCodec.encodeArtists(mArtistAdapter.getItems()));
         }
         outState.putString(KEY_SEARCH, mSearch);
         outState.putString(KEY_MESSAGE, mMessage);
+        outState.putInt(KEY_TOTAL, mTotal);
+        outState.putInt(KEY_NEXT_OFFSET, mNextOffset);
         super.onSaveInstanceState(outState);
     }
 
@@ -174,7 +253,10 @@ public class ArtistFragment extends Fragment {
     private void searchArtist(String artist) {
         // Clear list if no search keys present.
         if (artist.isEmpty()) {
+            cancelSearch();
             mSearch = artist;
+            mTotal = 0;
+            mNextOffset = 0;
             mArtistAdapter.clear();
             // Remove visibility if message was being displayed
             mMessage = artist;
@@ -182,75 +264,317 @@ public class ArtistFragment extends Fragment {
         } else {
             // Do new search only if keys have changed from previous search.
             if(!artist.equalsIgnoreCase(mSearch)) {
-                new SearchArtistTask().execute(artist);
+                String previousQuery = ArtistSearchCache.normalize(mSearch);
+                String query = ArtistSearchCache.normalize(artist);
                 mSearch = artist;
+                // Show previously searched keys straight from cache.
+                ArtistSearchCache.Result cachedResult = ArtistSearchCache.getInstance().get(artist);
+                if (cachedResult != null) {
+                    cancelSearch();
+                    showArtists(cachedResult.getArtists(), cachedResult.getTotal(), cachedResult.getNextOffset());
+                } else {
+                    // Refined keys can only narrow current results, so filter them while searching.
+                    if (!previousQuery.isEmpty() && query.startsWith(previousQuery)) {
+                        mArtistAdapter.retainMatching(query);
+                    }
+                    cancelPageLoad();
+                    scheduleSearch(artist);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the artist list, showing a message if no artists match the current search.
+     *
+     * @param total number of artists matching the search across all pages
+     * @param nextOffset server offset of the page after these artists
+     */
+    private void showArtists(List<Artist> artists, int total, int nextOffset) {
+        mTotal = total;
+        mNextOffset = nextOffset;
+        cancelPageLoad();
+        if (mArtistAdapter.setArtists(artists)) {
+            // Prefetched work for the old results is no longer useful.
+            mTrackPrefetcher.reset();
+        }
+        // If searching but no results. Need to show message.
+        if(!mSearch.isEmpty() && mArtistAdapter.isEmpty()) {
+            mMessage = NO_RESULTS_FOUND_MESSAGE_PRE + mSearch + NO_RESULTS_FOUND_MESSAGE_POST;
+        } else {
+            mMessage = "";
+        }
+        manageMessage();
+    }
+
+    /**
+     * Fetches the page after the artists already shown, unless it is loading or there are no more.
+     */
+    private void loadNextPage() {
+        if (mLoadArtistPageTask != null || mSearchArtistTask != null || mPendingSearch != null
+                || mSearch.isEmpty() || mNextOffset >= mTotal) {
+            return;
+        }
+        mLoadArtistPageTask = new LoadArtistPageTask(mSearch, mNextOffset);
+        mLoadArtistPageTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void cancelPageLoad() {
+        if (mLoadArtistPageTask != null) {
+            mLoadArtistPageTask.cancelLoad();
+            mLoadArtistPageTask = null;
+        }
+    }
+
+    /**
+     * Prefetches top tracks for the first artists on screen.
+     */
+    private void prefetchVisibleArtists() {
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int last = Math.min(first + Math.min(PREFETCH_VISIBLE_ROWS, mLayoutManager.getChildCount()),
+                mArtistAdapter.getItemCount());
+        List<Artist> visibleArtists = new ArrayList<>();
+        for (int i = first; i < last; i++) {
+            visibleArtists.add(mArtistAdapter.getItem(i));
+        }
+        mTrackPrefetcher.prefetch(visibleArtists);
+    }
+
+    /**
+     * Waits for typing to pause before searching so only the settled query reaches the network.
+     */
+    private void scheduleSearch(final String artist) {
+        if (mPendingSearch != null) {
+            mSearchHandler.removeCallbacks(mPendingSearch);
+        }
+        mPendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                mPendingSearch = null;
+                startSearch(artist);
             }
+        };
+        mSearchHandler.postDelayed(mPendingSearch, mSearchDebounceMillis);
+    }
+
+    /**
+     * Starts a search for the given keys, cancelling any search it supersedes.
+     */
+    private void startSearch(String artist) {
+        if (mSearchArtistTask != null) {
+            mSearchArtistTask.cancelSearch();
         }
+        mSearchArtistTask = new SearchArtistTask(artist);
+        // Run in parallel so a superseded request being torn down never delays the newest one.
+        mSearchArtistTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, artist);
+    }
+
+    /**
+     * Drops any debounced search and cancels the in-flight request.
+     */
+    private void cancelSearch() {
+        if (mPendingSearch != null) {
+            mSearchHandler.removeCallbacks(mPendingSearch);
+            mPendingSearch = null;
+        }
+        if (mSearchArtistTask != null) {
+            mSearchArtistTask.cancelSearch();
+            mSearchArtistTask = null;
+        }
+        cancelPageLoad();
     }
 
     /**
      *  Background task for retrieving and populating artist list.
+     *  Cached results are published first; stale ones are then revalidated over the network.
+     *  Responses are mapped to artists on the background thread.
      */
-    private class SearchArtistTask extends AsyncTask<String, Void, ArtistsPager> {
+    private class SearchArtistTask extends AsyncTask<String, ArtistPage, ArtistPage> {
 
         private final String LOG_TAG = SearchArtistTask.class.getSimpleName();
 
+        // Keys this task searches for and tag used to cancel its HTTP call.
+        private final String mQuery;
+        private final Object mRequestTag = new Object();
+        private String mTaskMessage;
+        private boolean mFresh;
+
+        SearchArtistTask(String query) {
+            mQuery = query;
+        }
+
+        /**
+         * Cancels the task and aborts its HTTP call if already started.
+         */
+        void cancelSearch() {
+            cancel(false);
+            mSpotifyClient.cancel(mRequestTag);
+        }
+
         @Override
-        protected ArtistsPager doInBackground(String... params) {
+        protected ArtistPage doInBackground(String... params) {
 
             // Exit empty artist searches.
-            if (params.length == 0) {
+            if (params.length == 0 || isCancelled()) {
                 return null;
             }
 
-            ArtistsPager artistsPager = null;
-
-            if(isNetworkAvailable()) {
-                // Use SpotifyApi to search for artists.
-                SpotifyApi spotifyApi = new SpotifyApi();
-                SpotifyService spotifyService = spotifyApi.getService();
-                try {
-                    artistsPager = spotifyService.searchArtists(params[0]);
-                } catch (Exception e) {
-                    // Display message if issues with SpotifyApi
-                    mMessage = SPOTIFY_NOT_AVAILABLE_MESSAGE;
+            // Use shared SpotifyModelService to search for artists.
+            SpotifyModelService spotifyService = mSpotifyClient.getModelService();
+            CancellableOkClient.setRequestTag(mRequestTag);
+            try {
+                // Serve cached results first, even when stale or offline.
+                ArtistPage artistPage = getCachedArtists(spotifyService, params[0]);
+                mFresh = artistPage != null && !SpotifyClient.isLastResponseStale();
+                if (mFresh) {
+                    return artistPage;
                 }
-            } else {
-                // Display network not available message
-                mMessage = NETWORK_NOT_AVAILABLE_MESSAGE;
+
+                if(isNetworkAvailable()) {
+                    if (artistPage != null) {
+                        // Show stale results while revalidating.
+                        publishProgress(artistPage);
+                    }
+                    try {
+                        artistPage = intern(spotifyService.searchArtists(params[0]));
+                        mFresh = true;
+                    } catch (Exception e) {
+                        // Display message if issues with SpotifyApi and nothing cached
+                        if (artistPage == null) {
+                            mTaskMessage = SPOTIFY_NOT_AVAILABLE_MESSAGE;
+                        }
+                    }
+                } else if (artistPage == null) {
+                    // Display network not available message
+                    mTaskMessage = NETWORK_NOT_AVAILABLE_MESSAGE;
+                }
+                return artistPage;
+            } finally {
+                CancellableOkClient.clearRequestTag();
+            }
+        }
+
+        /**
+         * Returns cached search results of any age or null if nothing is cached.
+         */
+        private ArtistPage getCachedArtists(SpotifyModelService spotifyService, String query) {
+            SpotifyClient.setCacheControl(SpotifyClient.CACHE_ONLY_ALLOW_STALE);
+            try {
+                return intern(spotifyService.searchArtists(query));
+            } catch (Exception e) {
+                return null;
+            } finally {
+                SpotifyClient.clearCacheControl();
             }
+        }
 
-            return artistsPager;
+        @Override
+        protected void onProgressUpdate(ArtistPage... values) {
+            if (mQuery.equals(mSearch)) {
+                showArtists(values[0].getArtists(), values[0].getTotal(), values[0].getArtists().size());
+            }
         }
 
         @Override
-        protected void onPostExecute(ArtistsPager artistsPager) {
-            super.onPostExecute(artistsPager);
+        protected void onPostExecute(ArtistPage artistPage) {
+            super.onPostExecute(artistPage);
 
-            // Prevent displaying list after mSearch has been cleared before previous process completes.
-            if(mSearch.isEmpty()) {
-                manageMessage();
+            // Only the newest query may update the list.
+            if (mSearchArtistTask == this) {
+                mSearchArtistTask = null;
+            }
+            if (!mQuery.equals(mSearch)) {
                 return;
             }
 
-            if(artistsPager != null) {
-                mArtistAdapter.clear();
-                // Create an artist list then add to adapter to prevent multiple refreshes
-                List<Artist> artistList = new ArrayList<>();
-                for(kaaes.spotify.webapi.android.models.Artist artist : artistsPager.artists.items) {
-                    artistList.add(new Artist(artist));
-                }
-                mArtistAdapter.addAll(artistList);
-                // If searching but no results. Need to show message.
-                if(!mSearch.isEmpty() && mArtistAdapter.isEmpty()) {
-                    mMessage = NO_RESULTS_FOUND_MESSAGE_PRE + mSearch + NO_RESULTS_FOUND_MESSAGE_POST;
-                } else {
-                    mMessage = "";
+            if (mTaskMessage != null) {
+                mMessage = mTaskMessage;
+            }
+
+            if(artistPage != null) {
+                if (mFresh) {
+                    ArtistSearchCache.getInstance().put(mQuery, artistPage.getArtists(), artistPage.getTotal(),
+                            artistPage.getArtists().size());
                 }
+                showArtists(artistPage.getArtists(), artistPage.getTotal(), artistPage.getArtists().size());
+            } else {
+                manageMessage();
             }
 
-            manageMessage();
+        }
+
+    }
+
+    /**
+     * Swaps the page's artists for their canonical instances.
+     */
+    private static ArtistPage intern(ArtistPage artistPage) {
+        return new ArtistPage(EntityStore.getInstance().putArtists(artistPage.getArtists()), artistPage.getTotal());
+    }
+
+    /**
+     *  Background task for retrieving the next page of the current search and appending it.
+     */
+    private class LoadArtistPageTask extends AsyncTask<Void, Void, ArtistPage> {
+
+        private final String mQuery;
+        private final int mOffset;
+        private final Object mRequestTag = new Object();
+
+        LoadArtistPageTask(String query, int offset) {
+            mQuery = query;
+            mOffset = offset;
+        }
+
+        void cancelLoad() {
+            cancel(false);
+            mSpotifyClient.cancel(mRequestTag);
+        }
 
+        @Override
+        protected ArtistPage doInBackground(Void... params) {
+            if (isCancelled()) {
+                return null;
+            }
+            Map<String, Object> options = new HashMap<>();
+            options.put(SpotifyService.OFFSET, mOffset);
+            options.put(SpotifyService.LIMIT, PAGE_SIZE);
+            CancellableOkClient.setRequestTag(mRequestTag);
+            try {
+                return intern(mSpotifyClient.getModelService().searchArtists(mQuery, options));
+            } catch (Exception e) {
+                // Scrolling back to the end retries the page.
+                return null;
+            } finally {
+                CancellableOkClient.clearRequestTag();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ArtistPage artistPage) {
+            if (mLoadArtistPageTask == this) {
+                mLoadArtistPageTask = null;
+            }
+            // Drop pages for an old search or a list that changed while loading.
+            if (artistPage == null || !mQuery.equals(mSearch) || mOffset != mNextOffset) {
+                return;
+            }
+            mTotal = artistPage.getTotal();
+            if (artistPage.getArtists().isEmpty()) {
+                // The server has no more, whatever its total says.
+                mTotal = mNextOffset;
+                return;
+            }
+            mNextOffset += artistPage.getArtists().size();
+            boolean appended = mArtistAdapter.appendArtists(artistPage.getArtists());
+            ArtistSearchCache.getInstance().put(mQuery, mArtistAdapter.getItems(), mTotal, mNextOffset);
+            if (!appended) {
+                // Only repeats came back, so the list can't scroll any further to ask for more.
+                loadNextPage();
+            }
         }
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import java.util.List;
+
+/**
+ * One page of artist search results as mapped by ModelConverter.
+ */
+public class ArtistPage {
+
+    final List<Artist> artists;
+    final int total;
+
+    public ArtistPage(List<Artist> artists, int total) {
+        this.artists = artists;
+        this.total = total;
+    }
+
+    public List<Artist> getArtists() {
+        return artists;
+    }
+
+    /**
+     * Returns the number of artists matching the search across all pages.
+     */
+    public int getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide LRU cache of artist search results keyed by normalized query.
+ * Sized by the number of artists held and entries expire after a fixed time to live.
+ * Lives outside ArtistFragment so results survive fragment recreation.
+ */
+public class ArtistSearchCache {
+
+    private static final int MAX_CACHED_ARTISTS = 1000;
+    private static final long TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static ArtistSearchCache sInstance;
+
+    private final LruCache<String, Result> mCache;
+    private final long mTimeToLiveMillis;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * Artists loaded so far for a query, the total number of matches Spotify reported and
+     * the server offset of the next page.
+     */
+    public static class Result {
+        final List<Artist> artists;
+        final int total;
+        final int nextOffset;
+        final long expiresAt;
+
+        Result(List<Artist> artists, int total, int nextOffset, long expiresAt) {
+            this.artists = artists;
+            this.total = total;
+            this.nextOffset = nextOffset;
+            this.expiresAt = expiresAt;
+        }
+
+        public List<Artist> getArtists() {
+            return artists;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getNextOffset() {
+            return nextOffset;
+        }
+    }
+
+    ArtistSearchCache(int maxArtists, long timeToLiveMillis) {
+        mTimeToLiveMillis = timeToLiveMillis;
+        mCache = new LruCache<String, Result>(maxArtists) {
+            @Override
+            protected int sizeOf(String key, Result result) {
+                // Empty results still take a slot.
+                return Math.max(1, result.artists.size());
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Result oldValue, Result newValue) {
+                if (evicted) {
+                    mEvictionCount++;
+                }
+            }
+        };
+    }
+
+    public static synchronized ArtistSearchCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ArtistSearchCache(MAX_CACHED_ARTISTS, TIME_TO_LIVE_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Case-folds and trims search keys so equivalent queries share an entry.
+     */
+    public static String normalize(String query) {
+        return query.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns cached results for the query or null if missing or expired.
+     */
+    public synchronized Result get(String query) {
+        String key = normalize(query);
+        Result result = mCache.get(key);
+        if (result != null && result.expiresAt <= SystemClock.elapsedRealtime()) {
+            mCache.remove(key);
+            result = null;
+        }
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return result;
+    }
+
+    /**
+     * Caches the artists loaded so far for a query, replacing any earlier pages.
+     */
+    public synchronized void put(String query, List<Artist> artists, int total, int nextOffset) {
+        List<Artist> copy = Collections.unmodifiableList(new ArrayList<>(artists));
+        mCache.put(normalize(query), new Result(copy, total, nextOffset,
+                SystemClock.elapsedRealtime() + mTimeToLiveMillis));
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "ArtistSearchCache[hits=%d,misses=%d,evictions=%d,size=%d/%d]",
+                mHitCount, mMissCount, mEvictionCount, mCache.size(), mCache.maxSize());
+    }
+}
@@ -17,10 +17,12 @@ package com.mpayne.android.spotifystreamer;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.DialogFragment;
 import android.support.v7.app.ActionBarActivity;
 
 import com.mpayne.android.spotifystreamer.service.MusicPlayerService;
+import com.mpayne.android.spotifystreamer.service.PlaybackQueue;
 
 import java.util.ArrayList;
 
@@ -78,12 +80,14 @@ public class BaseActivity extends ActionBarActivity implements  ArtistFragment.C
 
     @Override
     public void onTrackSelected(Artist artist, ArrayList<Track> tracks, int position) {
-        // Start MusicPlayerService
+        // Start MusicPlayerService, passing the shared queue by id rather than parceling the tracks.
+        // The queue continues into related artists' tracks once these run out.
+        PlaybackQueue queue = PlaybackQueue.create(artist.id, artist.name, tracks);
         Intent intent = new Intent(this, MusicPlayerService.class);
         intent.setAction(MusicPlayerService.ACTION_PLAY_TRACK);
-        intent.putExtra(MusicPlayerService.EXTRA_ARTIST_NAME, artist.name);
-        intent.putParcelableArrayListExtra(MusicPlayerService.EXTRA_TRACK_LIST, tracks);
+        intent.putExtra(MusicPlayerService.EXTRA_QUEUE_ID, queue.getId());
         intent.putExtra(MusicPlayerService.EXTRA_TRACK_POSITION, position);
+        intent.putExtra(MusicPlayerService.EXTRA_REQUESTED_AT, SystemClock.elapsedRealtime());
         startService(intent);
 
         if(mTwoPane) {
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSink;
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Retrofit client backed by OkHttp that tags each call so it can be cancelled at the HTTP level.
+ * The tag is taken from the calling thread, set with {@link #setRequestTag(Object)} before
+ * invoking a synchronous SpotifyService method.
+ */
+public class CancellableOkClient implements Client {
+
+    private static final ThreadLocal<Object> sRequestTag = new ThreadLocal<>();
+
+    private final OkHttpClient mClient;
+
+    public CancellableOkClient(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Tags calls made from the current thread until {@link #clearRequestTag()} is called.
+     */
+    public static void setRequestTag(Object tag) {
+        sRequestTag.set(tag);
+    }
+
+    public static void clearRequestTag() {
+        sRequestTag.remove();
+    }
+
+    /**
+     * Cancels in-flight calls made with the given tag. Blocked readers fail with an IOException.
+     */
+    public void cancel(Object tag) {
+        if (tag != null) {
+            mClient.cancel(tag);
+        }
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        com.squareup.okhttp.Request.Builder builder = new com.squareup.okhttp.Request.Builder()
+                .url(request.getUrl())
+                .method(request.getMethod(), createRequestBody(request.getBody()));
+        Object tag = sRequestTag.get();
+        if (tag != null) {
+            builder.tag(tag);
+        }
+        for (Header header : request.getHeaders()) {
+            builder.addHeader(header.getName(), header.getValue() == null ? "" : header.getValue());
+        }
+        return parseResponse(mClient.newCall(builder.build()).execute());
+    }
+
+    private static RequestBody createRequestBody(final TypedOutput body) {
+        if (body == null) {
+            return null;
+        }
+        final MediaType mediaType = MediaType.parse(body.mimeType());
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() {
+                return body.length();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                body.writeTo(sink.outputStream());
+            }
+        };
+    }
+
+    private static Response parseResponse(com.squareup.okhttp.Response response) {
+        Headers headers = response.headers();
+        List<Header> headerList = new ArrayList<>(headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            headerList.add(new Header(headers.name(i), headers.value(i)));
+        }
+        return new Response(response.request().urlString(), response.code(), response.message(),
+                headerList, createTypedInput(response.body()));
+    }
+
+    private static TypedInput createTypedInput(final ResponseBody body) {
+        if (body.contentLength() == 0) {
+            return null;
+        }
+        return new TypedInput() {
+            @Override
+            public String mimeType() {
+                MediaType mediaType = body.contentType();
+                return mediaType == null ? null : mediaType.toString();
+            }
+
+            @Override
+            public long length() {
+                return body.contentLength();
+            }
+
+            @Override
+            public InputStream in() throws IOException {
+                return body.byteStream();
+            }
+        };
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.os.AsyncTask;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recycler adapter for Spotify items with stable ids. Each submitted list is turned into
+ * ready-to-bind rows and diffed against the shown rows in the background, so the main thread
+ * only swaps in the finished rows and rebinds those that were inserted, moved or changed.
+ */
+public abstract class DiffListAdapter<T, R extends DiffListAdapter.Row<T>, VH extends RecyclerView.ViewHolder>
+        extends RecyclerView.Adapter<VH> implements ListDiff.ItemCallback<R> {
+
+    private final String LOG_TAG = DiffListAdapter.class.getSimpleName();
+
+    /**
+     * What a row shows for one item, worked out off the main thread. Subclasses add the fields
+     * they bind and must not change them once created.
+     */
+    public static class Row<T> {
+        final T item;
+        final String id;
+
+        protected Row(T item, String id) {
+            this.item = item;
+            this.id = id;
+        }
+    }
+
+    // Rows bound to views and the newest items submitted, which differ while rows are prepared.
+    private List<R> mRows = new ArrayList<>();
+    private List<T> mLatestItems = new ArrayList<>();
+
+    // Bumped on every submit so rows finishing after a newer submit are dropped.
+    private int mGeneration;
+
+    private final Map<String, Long> mStableIds = new HashMap<>();
+    private long mNextStableId;
+
+    protected final RenderStats mRenderStats;
+
+    protected DiffListAdapter(String name) {
+        mRenderStats = new RenderStats(name);
+        setHasStableIds(true);
+    }
+
+    public T getItem(int position) {
+        return mRows.get(position).item;
+    }
+
+    /**
+     * Returns a copy of the newest items, including any not yet shown.
+     */
+    public ArrayList<T> getItems() {
+        return new ArrayList<>(mLatestItems);
+    }
+
+    /**
+     * Returns a copy of the items shown, in the order adapter positions refer to.
+     */
+    public ArrayList<T> getShownItems() {
+        ArrayList<T> items = new ArrayList<>(mRows.size());
+        for (R row : mRows) {
+            items.add(row.item);
+        }
+        return items;
+    }
+
+    public int getCount() {
+        return mLatestItems.size();
+    }
+
+    public boolean isEmpty() {
+        return mLatestItems.isEmpty();
+    }
+
+    public void clear() {
+        submitList(new ArrayList<T>());
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String id = mRows.get(position).id;
+        Long stableId = mStableIds.get(id);
+        if (stableId == null) {
+            stableId = mNextStableId++;
+            mStableIds.put(id, stableId);
+        }
+        return stableId;
+    }
+
+    @Override
+    public final String getId(R row) {
+        return row.id;
+    }
+
+    /**
+     * Builds the row for an item. Called on a background thread.
+     */
+    protected abstract R createRow(T item);
+
+    /**
+     * Binds a row prepared by createRow.
+     */
+    protected abstract void onBindRow(VH viewHolder, R row);
+
+    @Override
+    public final void onBindViewHolder(VH viewHolder, int position) {
+        long start = System.nanoTime();
+        onBindRow(viewHolder, mRows.get(position));
+        mRenderStats.recordBind(System.nanoTime() - start);
+    }
+
+    /**
+     * Shows the given items. Emptying the list applies at once; otherwise rows are built and
+     * diffed in the background and applied unless a newer list was submitted meanwhile.
+     */
+    protected void submitList(List<T> items) {
+        final List<T> newItems = new ArrayList<>(items);
+        mLatestItems = newItems;
+        final int generation = ++mGeneration;
+
+        if (newItems.isEmpty()) {
+            int oldCount = mRows.size();
+            mRows = new ArrayList<>();
+            mStableIds.clear();
+            if (oldCount > 0) {
+                notifyItemRangeRemoved(0, oldCount);
+            }
+            onItemsApplied(oldCount > 0);
+            return;
+        }
+
+        final List<R> oldRows = mRows;
+        new AsyncTask<Void, Void, PreparedRows<R>>() {
+            @Override
+            protected PreparedRows<R> doInBackground(Void... params) {
+                return prepareRows(oldRows, newItems);
+            }
+
+            @Override
+            protected void onPostExecute(PreparedRows<R> prepared) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                long start = System.nanoTime();
+                applyRows(prepared);
+                mRenderStats.recordApply(System.nanoTime() - start);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Builds rows for the new items and the updates that turn the old rows into them.
+     * Runs in the background and only reads the given lists.
+     */
+    private PreparedRows<R> prepareRows(List<R> oldRows, List<T> newItems) {
+        PreparedRows<R> prepared = new PreparedRows<>();
+        prepared.rows = new ArrayList<>(newItems.size());
+        prepared.ids = new HashSet<>();
+        for (T item : newItems) {
+            R row = createRow(item);
+            prepared.rows.add(row);
+            prepared.ids.add(row.id);
+        }
+        if (!oldRows.isEmpty()) {
+            prepared.diff = ListDiff.calculate(oldRows, prepared.rows, this);
+        }
+        return prepared;
+    }
+
+    private void applyRows(PreparedRows<R> prepared) {
+        mRows = prepared.rows;
+        mStableIds.keySet().retainAll(prepared.ids);
+        if (prepared.diff == null) {
+            notifyItemRangeInserted(0, mRows.size());
+            onItemsApplied(true);
+        } else {
+            prepared.diff.dispatchUpdatesTo(this);
+            onItemsApplied(!prepared.diff.isEmpty());
+        }
+    }
+
+    /**
+     * Called on the main thread once submitted items are shown.
+     *
+     * @param changed false if the rows already showed these items
+     */
+    protected void onItemsApplied(boolean changed) {}
+
+    /**
+     * Rows and updates computed in the background, ready to apply.
+     */
+    private static class PreparedRows<R> {
+        List<R> rows;
+        Set<String> ids;
+        ListDiff diff;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        if (BuildConfig.DEBUG) {
+            mRenderStats.start();
+        }
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mRenderStats.stop();
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, mRenderStats.toString());
+        }
+        super.onDetachedFromRecyclerView(recyclerView);
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of artist and track lists for saved state and the playback session.
+ * Each list starts with a version header, then a table of the distinct strings and image sets
+ * it contains, then the entries as varint references into those tables. Album names and image
+ * urls shared by many tracks are written once, and decoding shares them again.
+ */
+public final class EntityCodec {
+
+    private static final String TAG = EntityCodec.class.getSimpleName();
+
+    private static final int MAGIC = 0x5345;
+    private static final int VERSION = 1;
+    private static final int KIND_ARTISTS = 1;
+    private static final int KIND_TRACKS = 2;
+    private static final int KIND_STRINGS = 3;
+    // Guards against allocating huge arrays for a corrupt length.
+    private static final int MAX_COUNT = 100000;
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private EntityCodec() {}
+
+    /**
+     * Encodes the artists into a single blob, e.g. for Bundle.putByteArray.
+     */
+    public static byte[] encodeArtists(List<Artist> artists) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        try {
+            writeArtists(new DataOutputStream(bytes), artists);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a blob made by encodeArtists.
+     *
+     * @return the artists or null if the blob is missing or can't be read
+     */
+    public static ArrayList<Artist> decodeArtists(byte[] blob) {
+        if (blob == null) {
+            return null;
+        }
+        try {
+            return readArtists(new DataInputStream(new ByteArrayInputStream(blob)));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable artists", e);
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the tracks into a single blob, e.g. for Bundle.putByteArray.
+     */
+    public static byte[] encodeTracks(List<Track> tracks) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        try {
+            writeTracks(new DataOutputStream(bytes), tracks);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a blob made by encodeTracks.
+     *
+     * @return the tracks or null if the blob is missing or can't be read
+     */
+    public static ArrayList<Track> decodeTracks(byte[] blob) {
+        if (blob == null) {
+            return null;
+        }
+        try {
+            return readTracks(new DataInputStream(new ByteArrayInputStream(blob)));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable tracks", e);
+            return null;
+        }
+    }
+
+    public static void writeArtists(DataOutput out, List<Artist> artists) throws IOException {
+        Tables tables = new Tables();
+        int[] refs = new int[artists.size() * 3];
+        for (int i = 0; i < artists.size(); i++) {
+            Artist artist = artists.get(i);
+            refs[i * 3] = tables.string(artist.id);
+            refs[i * 3 + 1] = tables.string(artist.name);
+            refs[i * 3 + 2] = tables.images(artist.images);
+        }
+        writeHeader(out, KIND_ARTISTS);
+        tables.write(out);
+        writeRefs(out, artists.size(), refs);
+    }
+
+    public static ArrayList<Artist> readArtists(DataInput in) throws IOException {
+        readHeader(in, KIND_ARTISTS);
+        Tables tables = Tables.read(in);
+        int count = readCount(in);
+        ArrayList<Artist> artists = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = tables.getString(readVarInt(in));
+            String name = tables.getString(readVarInt(in));
+            artists.add(new Artist(id, name, tables.getImages(readVarInt(in))));
+        }
+        return artists;
+    }
+
+    public static void writeTracks(DataOutput out, List<Track> tracks) throws IOException {
+        Tables tables = new Tables();
+        int[] refs = new int[tracks.size() * 5];
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            refs[i * 5] = tables.string(track.id);
+            refs[i * 5 + 1] = tables.string(track.name);
+            refs[i * 5 + 2] = tables.string(track.albumName);
+            refs[i * 5 + 3] = tables.images(track.images);
+            refs[i * 5 + 4] = tables.string(track.previewUrl);
+        }
+        writeHeader(out, KIND_TRACKS);
+        tables.write(out);
+        writeRefs(out, tracks.size(), refs);
+    }
+
+    public static ArrayList<Track> readTracks(DataInput in) throws IOException {
+        readHeader(in, KIND_TRACKS);
+        Tables tables = Tables.read(in);
+        int count = readCount(in);
+        ArrayList<Track> tracks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = tables.getString(readVarInt(in));
+            String name = tables.getString(readVarInt(in));
+            String albumName = tables.getString(readVarInt(in));
+            ImageVariants images = tables.getImages(readVarInt(in));
+            tracks.add(new Track(id, name, albumName, images, tables.getString(readVarInt(in))));
+        }
+        return tracks;
+    }
+
+    /**
+     * Writes strings that repeat a lot, e.g. the artist of each queued track.
+     */
+    public static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        Tables tables = new Tables();
+        int[] refs = new int[strings.size()];
+        for (int i = 0; i < strings.size(); i++) {
+            refs[i] = tables.string(strings.get(i));
+        }
+        writeHeader(out, KIND_STRINGS);
+        tables.write(out);
+        writeRefs(out, strings.size(), refs);
+    }
+
+    public static ArrayList<String> readStrings(DataInput in) throws IOException {
+        readHeader(in, KIND_STRINGS);
+        Tables tables = Tables.read(in);
+        int count = readCount(in);
+        ArrayList<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(tables.getString(readVarInt(in)));
+        }
+        return strings;
+    }
+
+    private static void writeHeader(DataOutput out, int kind) throws IOException {
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+    }
+
+    private static void readHeader(DataInput in, int kind) throws IOException {
+        int magic = in.readUnsignedShort();
+        int version = in.readUnsignedByte();
+        int actualKind = in.readUnsignedByte();
+        if (magic != MAGIC || version != VERSION || actualKind != kind) {
+            throw new IOException("Unsupported header " + magic + "/" + version + "/" + actualKind);
+        }
+    }
+
+    private static void writeRefs(DataOutput out, int count, int[] refs) throws IOException {
+        writeVarInt(out, count);
+        for (int ref : refs) {
+            writeVarInt(out, ref);
+        }
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        int count = readVarInt(in);
+        if (count > MAX_COUNT) {
+            throw new IOException("Unexpected count " + count);
+        }
+        return count;
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Distinct strings and image sets of one list. Reference 0 stands for null.
+     */
+    private static class Tables {
+
+        private final List<String> mStrings = new ArrayList<>();
+        private final Map<String, Integer> mStringRefs = new HashMap<>();
+        private final List<int[]> mImages = new ArrayList<>();
+        private final Map<ImagesKey, Integer> mImageRefs = new HashMap<>();
+        private ImageVariants[] mDecodedImages;
+
+        int string(String value) {
+            if (value == null) {
+                return 0;
+            }
+            Integer ref = mStringRefs.get(value);
+            if (ref == null) {
+                mStrings.add(value);
+                ref = mStrings.size();
+                mStringRefs.put(value, ref);
+            }
+            return ref;
+        }
+
+        int images(ImageVariants images) {
+            if (images == null) {
+                return 0;
+            }
+            int[] encoded = new int[images.size() * 3];
+            for (int i = 0; i < images.size(); i++) {
+                encoded[i * 3] = string(images.urls[i]);
+                encoded[i * 3 + 1] = images.widths[i];
+                encoded[i * 3 + 2] = images.heights[i];
+            }
+            ImagesKey key = new ImagesKey(encoded);
+            Integer ref = mImageRefs.get(key);
+            if (ref == null) {
+                mImages.add(encoded);
+                ref = mImages.size();
+                mImageRefs.put(key, ref);
+            }
+            return ref;
+        }
+
+        String getString(int ref) throws IOException {
+            if (ref < 0 || ref > mStrings.size()) {
+                throw new IOException("Bad string reference " + ref);
+            }
+            return ref == 0 ? null : mStrings.get(ref - 1);
+        }
+
+        ImageVariants getImages(int ref) throws IOException {
+            if (ref < 0 || ref > mDecodedImages.length) {
+                throw new IOException("Bad image reference " + ref);
+            }
+            return ref == 0 ? null : mDecodedImages[ref - 1];
+        }
+
+        void write(DataOutput out) throws IOException {
+            writeVarInt(out, mStrings.size());
+            for (String value : mStrings) {
+                out.writeUTF(value);
+            }
+            writeVarInt(out, mImages.size());
+            for (int[] encoded : mImages) {
+                writeVarInt(out, encoded.length / 3);
+                for (int value : encoded) {
+                    writeVarInt(out, value);
+                }
+            }
+        }
+
+        static Tables read(DataInput in) throws IOException {
+            Tables tables = new Tables();
+            int stringCount = readCount(in);
+            for (int i = 0; i < stringCount; i++) {
+                tables.mStrings.add(in.readUTF());
+            }
+            int imageCount = readCount(in);
+            tables.mDecodedImages = new ImageVariants[imageCount];
+            for (int i = 0; i < imageCount; i++) {
+                int size = readCount(in);
+                String[] urls = new String[size];
+                int[] widths = new int[size];
+                int[] heights = new int[size];
+                for (int j = 0; j < size; j++) {
+                    urls[j] = tables.getString(readVarInt(in));
+                    widths[j] = readVarInt(in);
+                    heights[j] = readVarInt(in);
+                }
+                tables.mDecodedImages[i] = new ImageVariants(urls, widths, heights);
+            }
+            return tables;
+        }
+    }
+
+    /**
+     * Content key of an encoded image set.
+     */
+    private static class ImagesKey {
+
+        private final int[] mEncoded;
+        private final int mHashCode;
+
+        ImagesKey(int[] encoded) {
+            mEncoded = encoded;
+            mHashCode = Arrays.hashCode(encoded);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ImagesKey && Arrays.equals(mEncoded, ((ImagesKey) o).mEncoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
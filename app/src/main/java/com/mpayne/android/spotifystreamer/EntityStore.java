@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Process-wide store holding one canonical Artist and Track per Spotify id and the top track ids
+ * of recently loaded artists. Screens, the prefetcher and the player service all go through it,
+ * so an artist opened twice is served from memory and shares its objects with every list showing it.
+ * Artists and tracks are evicted least recently used first once their estimated size exceeds a budget.
+ */
+public class EntityStore {
+
+    private static final int MAX_ARTIST_BYTES = 512 * 1024;
+    private static final int MAX_TRACK_BYTES = 1024 * 1024;
+    private static final int MAX_TOP_TRACK_ARTISTS = 50;
+
+    private static EntityStore sInstance;
+
+    private final LruCache<String, Artist> mArtists;
+    private final LruCache<String, Track> mTracks;
+    private final LruCache<String, String[]> mTopTrackIds;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    EntityStore(int maxArtistBytes, int maxTrackBytes, int maxTopTrackArtists) {
+        mArtists = new LruCache<String, Artist>(maxArtistBytes) {
+            @Override
+            protected int sizeOf(String id, Artist artist) {
+                return estimateBytes(artist);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String id, Artist oldValue, Artist newValue) {
+                if (evicted) {
+                    mEvictionCount++;
+                }
+            }
+        };
+        mTracks = new LruCache<String, Track>(maxTrackBytes) {
+            @Override
+            protected int sizeOf(String id, Track track) {
+                return estimateBytes(track);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String id, Track oldValue, Track newValue) {
+                if (evicted) {
+                    mEvictionCount++;
+                }
+            }
+        };
+        mTopTrackIds = new LruCache<>(maxTopTrackArtists);
+    }
+
+    public static synchronized EntityStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new EntityStore(MAX_ARTIST_BYTES, MAX_TRACK_BYTES, MAX_TOP_TRACK_ARTISTS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the artist with the given id or null if it isn't held.
+     */
+    public synchronized Artist getArtist(String id) {
+        return id == null ? null : mArtists.get(id);
+    }
+
+    /**
+     * Stores the artist unless an identical one is held already.
+     *
+     * @return the canonical instance to keep instead of the given one
+     */
+    public synchronized Artist putArtist(Artist artist) {
+        if (artist == null || artist.id == null) {
+            return artist;
+        }
+        Artist existing = mArtists.get(artist.id);
+        if (existing != null && isSame(existing, artist)) {
+            return existing;
+        }
+        mArtists.put(artist.id, artist);
+        return artist;
+    }
+
+    /**
+     * Stores each artist, returning the list of canonical instances in the same order.
+     */
+    public synchronized List<Artist> putArtists(List<Artist> artists) {
+        List<Artist> canonical = new ArrayList<>(artists.size());
+        for (Artist artist : artists) {
+            canonical.add(putArtist(artist));
+        }
+        return canonical;
+    }
+
+    /**
+     * Returns the track with the given id or null if it isn't held.
+     */
+    public synchronized Track getTrack(String id) {
+        return id == null ? null : mTracks.get(id);
+    }
+
+    /**
+     * Stores the track unless an identical one is held already.
+     *
+     * @return the canonical instance to keep instead of the given one
+     */
+    public synchronized Track putTrack(Track track) {
+        if (track == null || track.id == null) {
+            return track;
+        }
+        Track existing = mTracks.get(track.id);
+        if (existing != null && isSame(existing, track)) {
+            return existing;
+        }
+        mTracks.put(track.id, track);
+        return track;
+    }
+
+    /**
+     * Stores each track, returning the list of canonical instances in the same order.
+     */
+    public synchronized List<Track> putTracks(List<Track> tracks) {
+        List<Track> canonical = new ArrayList<>(tracks.size());
+        for (Track track : tracks) {
+            canonical.add(putTrack(track));
+        }
+        return canonical;
+    }
+
+    /**
+     * Returns the top tracks of the artist or null if they weren't loaded or a track was evicted since.
+     */
+    public synchronized List<Track> getTopTracks(String artistId) {
+        String[] trackIds = artistId == null ? null : mTopTrackIds.get(artistId);
+        if (trackIds == null) {
+            mMissCount++;
+            return null;
+        }
+        List<Track> tracks = new ArrayList<>(trackIds.length);
+        for (String trackId : trackIds) {
+            Track track = mTracks.get(trackId);
+            if (track == null) {
+                mTopTrackIds.remove(artistId);
+                mMissCount++;
+                return null;
+            }
+            tracks.add(track);
+        }
+        mHitCount++;
+        return Collections.unmodifiableList(tracks);
+    }
+
+    public synchronized boolean hasTopTracks(String artistId) {
+        return artistId != null && mTopTrackIds.get(artistId) != null;
+    }
+
+    /**
+     * Stores the top tracks of an artist, replacing any loaded before.
+     *
+     * @return the canonical tracks in the same order
+     */
+    public synchronized List<Track> putTopTracks(String artistId, List<Track> tracks) {
+        List<Track> canonical = new ArrayList<>(tracks.size());
+        List<String> trackIds = new ArrayList<>(tracks.size());
+        for (Track track : tracks) {
+            Track stored = putTrack(track);
+            canonical.add(stored);
+            // Tracks without an id can't be looked up again.
+            if (stored.id != null) {
+                trackIds.add(stored.id);
+            }
+        }
+        mTopTrackIds.put(artistId, trackIds.toArray(new String[trackIds.size()]));
+        return Collections.unmodifiableList(canonical);
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Estimates the heap taken by the artist's strings.
+     */
+    static int estimateBytes(Artist artist) {
+        return (length(artist.id) + length(artist.name) + length(artist.images)) * 2;
+    }
+
+    /**
+     * Estimates the heap taken by the track's strings.
+     */
+    static int estimateBytes(Track track) {
+        // Strings are UTF-16 in memory.
+        return (length(track.id) + length(track.name) + length(track.albumName) + length(track.previewUrl)
+                + length(track.images)) * 2;
+    }
+
+    private static int length(ImageVariants images) {
+        int length = 0;
+        if (images != null) {
+            for (String url : images.urls) {
+                length += length(url);
+            }
+        }
+        return length;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static boolean isSame(Artist a, Artist b) {
+        return TextUtils.equals(a.name, b.name) && isSame(a.images, b.images);
+    }
+
+    private static boolean isSame(Track a, Track b) {
+        return TextUtils.equals(a.name, b.name) && TextUtils.equals(a.albumName, b.albumName)
+                && TextUtils.equals(a.previewUrl, b.previewUrl) && isSame(a.images, b.images);
+    }
+
+    private static boolean isSame(ImageVariants a, ImageVariants b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!TextUtils.equals(a.getUrl(i), b.getUrl(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "EntityStore[hits=%d,misses=%d,evictions=%d,artists=%d/%d,tracks=%d/%d,topTracks=%d/%d]",
+                mHitCount, mMissCount, mEvictionCount, mArtists.size(), mArtists.maxSize(), mTracks.size(),
+                mTracks.maxSize(), mTopTrackIds.size(), mTopTrackIds.maxSize());
+    }
+}
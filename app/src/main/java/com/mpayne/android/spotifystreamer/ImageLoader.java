@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v7.widget.RecyclerView;
+import android.widget.ImageView;
+
+import com.squareup.picasso.LruCache;
+import com.squareup.picasso.OkHttpDownloader;
+import com.squareup.picasso.Picasso;
+
+import java.io.File;
+
+/**
+ * App-wide Picasso configuration for list thumbnails and player artwork.
+ * Images are decoded at the size they are shown, opaque thumbnails use RGB_565,
+ * and list requests are tagged with a {@link ListTag} so they can be paused while a list is flinging.
+ */
+public final class ImageLoader {
+
+    // Decoded bitmaps may use an eighth of the app's heap.
+    private static final int MEMORY_CACHE_HEAP_DIVISOR = 8;
+    private static final String DISK_CACHE_DIRECTORY = "picasso-images";
+    private static final long DISK_CACHE_SIZE_BYTES = 20 * 1024 * 1024;
+
+    private static Picasso sPicasso;
+
+    private ImageLoader() {}
+
+    public static synchronized Picasso getPicasso(Context context) {
+        if (sPicasso == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            int memoryCacheBytes = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_HEAP_DIVISOR;
+            sPicasso = new Picasso.Builder(appContext)
+                    .memoryCache(new LruCache(memoryCacheBytes))
+                    .downloader(new OkHttpDownloader(new File(appContext.getCacheDir(), DISK_CACHE_DIRECTORY),
+                            DISK_CACHE_SIZE_BYTES))
+                    .build();
+        }
+        return sPicasso;
+    }
+
+    /**
+     * Loads an opaque list thumbnail decoded to its on-screen size.
+     *
+     * @param request built with {@link ImageRequest#thumbnail(ImageVariants, int)}
+     * @param tag the list's {@link ListTag}
+     */
+    public static void loadThumbnail(ImageView imageView, ImageRequest request, Object tag) {
+        Picasso picasso = getPicasso(imageView.getContext());
+        if (request.url == null) {
+            // Don't leave a recycled row showing another item's image.
+            picasso.cancelRequest(imageView);
+            imageView.setImageResource(request.placeholderResId);
+            return;
+        }
+        picasso.load(request.url)
+                .resize(request.width, request.height)
+                .centerCrop()
+                .config(Bitmap.Config.RGB_565)
+                .placeholder(request.placeholderResId)
+                .tag(tag)
+                .into(imageView);
+    }
+
+    /**
+     * Loads player artwork scaled down to fit its view. Does nothing if there is no image.
+     *
+     * @param request built with {@link ImageRequest#artwork(ImageVariants, int, int)}
+     */
+    public static void loadArtwork(ImageView imageView, ImageRequest request) {
+        if (request.url == null) {
+            return;
+        }
+        getPicasso(imageView.getContext())
+                .load(request.url)
+                .resize(request.width, request.height)
+                .centerInside()
+                .onlyScaleDown()
+                .into(imageView);
+    }
+
+    /**
+     * Tags one list's thumbnails. Every list has its own, so pausing one list's requests never
+     * holds back another's. Added to the list as a scroll listener, it pauses them while the list
+     * flings and resumes them once it slows down.
+     */
+    public static final class ListTag extends RecyclerView.OnScrollListener {
+
+        @Override
+        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            Picasso picasso = getPicasso(recyclerView.getContext());
+            if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+                picasso.pauseTag(this);
+            } else {
+                picasso.resumeTag(this);
+            }
+        }
+
+        /**
+         * Drops the list's outstanding requests once its views are gone. The list may be
+         * destroyed mid-fling, so this also clears the pause. Call from Fragment.onDestroyView.
+         */
+        public void cancelRequests(Context context) {
+            Picasso picasso = getPicasso(context);
+            // Cancel first so resuming can't start the paused requests again.
+            picasso.cancelTag(this);
+            picasso.resumeTag(this);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+/**
+ * An image ready to hand to ImageLoader: the url of the variant picked for the target size,
+ * the size to decode to and the placeholder to show. Built along with row models off the main
+ * thread, so binding does no url selection or validation.
+ */
+public final class ImageRequest {
+
+    static final int NO_PLACEHOLDER = 0;
+
+    final String url;
+    final int width;
+    final int height;
+    final int placeholderResId;
+
+    private ImageRequest(String url, int width, int height, int placeholderResId) {
+        this.url = url;
+        this.width = width;
+        this.height = height;
+        this.placeholderResId = placeholderResId;
+    }
+
+    /**
+     * Describes a square list thumbnail shown over a grey placeholder.
+     */
+    public static ImageRequest thumbnail(ImageVariants images, int size) {
+        String url = images == null ? null : images.select(size, size);
+        return new ImageRequest(url, size, size, R.drawable.grey_square);
+    }
+
+    /**
+     * Describes player artwork scaled down to fit the given size.
+     */
+    public static ImageRequest artwork(ImageVariants images, int width, int height) {
+        String url = images == null ? null : images.select(width, height);
+        return new ImageRequest(url, width, height, NO_PLACEHOLDER);
+    }
+}
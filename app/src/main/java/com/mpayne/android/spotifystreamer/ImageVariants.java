@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.Patterns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * Every size Spotify offers for an artist or album image, ordered smallest first,
+ * so the smallest one covering a view can be picked when it is bound. Urls are validated
+ * once when built from the API images, so anything picked can be loaded as is.
+ */
+public class ImageVariants implements Parcelable {
+
+    public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
+        public ImageVariants createFromParcel(Parcel in ) {
+            return new ImageVariants( in );
+        }
+
+        public ImageVariants[] newArray(int size) {
+            return new ImageVariants[size];
+        }
+    };
+
+    // Images without dimensions are assumed to be large.
+    private static final int UNKNOWN_DIMENSION = Integer.MAX_VALUE;
+
+    final String[] urls;
+    final int[] widths;
+    final int[] heights;
+
+    /**
+     * Constructor taking in the images of a kaaes.spotify.webapi.android.models Artist or Album.
+     */
+    public ImageVariants(List<Image> images) {
+        List<Image> sorted = new ArrayList<>();
+        if (images != null) {
+            for (Image image : images) {
+                if (image != null && isValidUrl(image.url)) {
+                    sorted.add(image);
+                }
+            }
+        }
+        Collections.sort(sorted, new Comparator<Image>() {
+            @Override
+            public int compare(Image lhs, Image rhs) {
+                long lhsArea = (long) dimension(lhs.width) * dimension(lhs.height);
+                long rhsArea = (long) dimension(rhs.width) * dimension(rhs.height);
+                return lhsArea < rhsArea ? -1 : (lhsArea == rhsArea ? 0 : 1);
+            }
+        });
+        int count = sorted.size();
+        urls = new String[count];
+        widths = new int[count];
+        heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            Image image = sorted.get(i);
+            urls[i] = image.url;
+            widths[i] = dimension(image.width);
+            heights[i] = dimension(image.height);
+        }
+    }
+
+    /**
+     * Constructor taking in validated image variants already ordered smallest first.
+     */
+    public ImageVariants(String[] urls, int[] widths, int[] heights) {
+        this.urls = urls;
+        this.widths = widths;
+        this.heights = heights;
+    }
+
+    public ImageVariants(Parcel in) {
+        urls = in.createStringArray();
+        widths = in.createIntArray();
+        heights = in.createIntArray();
+    }
+
+    /**
+     * Checks a url the way a bind would before handing it to Picasso. Matching the regex is
+     * slow, so it is only done here while models are built in the background.
+     */
+    static boolean isValidUrl(String url) {
+        return url != null && Patterns.WEB_URL.matcher(url).matches();
+    }
+
+    private static int dimension(Integer value) {
+        return value == null || value <= 0 ? UNKNOWN_DIMENSION : value;
+    }
+
+    public boolean isEmpty() {
+        return urls.length == 0;
+    }
+
+    public int size() {
+        return urls.length;
+    }
+
+    public String getUrl(int index) {
+        return urls[index];
+    }
+
+    public int getWidth(int index) {
+        return widths[index];
+    }
+
+    public int getHeight(int index) {
+        return heights[index];
+    }
+
+    /**
+     * Picks the smallest image covering the target size in pixels,
+     * falling back to the largest image if none is big enough.
+     *
+     * @return image url or null if there are no images
+     */
+    public String select(int targetWidth, int targetHeight) {
+        if (urls.length == 0) {
+            return null;
+        }
+        for (int i = 0; i < urls.length; i++) {
+            if (widths[i] >= targetWidth && heights[i] >= targetHeight) {
+                return urls[i];
+            }
+        }
+        return urls[urls.length - 1];
+    }
+
+    public String getSmallestUrl() {
+        return urls.length == 0 ? null : urls[0];
+    }
+
+    public String getLargestUrl() {
+        return urls.length == 0 ? null : urls[urls.length - 1];
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeStringArray(urls);
+        dest.writeIntArray(widths);
+        dest.writeIntArray(heights);
+    }
+}
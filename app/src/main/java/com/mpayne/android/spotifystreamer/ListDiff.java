@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Computes the removes, moves, inserts and changes that turn one list of items into another,
+ * matching items by Spotify id. Cheap enough for result lists but meant to run off the main thread.
+ */
+public class ListDiff {
+
+    /**
+     * Identifies items and compares what a row displays for them.
+     */
+    public interface ItemCallback<T> {
+        String getId(T item);
+
+        boolean hasSameContent(T oldItem, T newItem);
+    }
+
+    private static final int REMOVE = 0;
+    private static final int INSERT = 1;
+    private static final int MOVE = 2;
+    private static final int CHANGE = 3;
+
+    // Operations as {type, position, toPosition}, in the order they must be dispatched.
+    private final List<int[]> mOperations = new ArrayList<>();
+
+    private ListDiff() {}
+
+    public static <T> ListDiff calculate(List<T> oldItems, List<T> newItems, ItemCallback<T> callback) {
+        ListDiff diff = new ListDiff();
+
+        Set<String> newIds = new HashSet<>();
+        for (T item : newItems) {
+            newIds.add(callback.getId(item));
+        }
+
+        // Remove from the end so earlier positions stay valid.
+        List<T> working = new ArrayList<>(oldItems);
+        for (int i = working.size() - 1; i >= 0; i--) {
+            if (!newIds.contains(callback.getId(working.get(i)))) {
+                working.remove(i);
+                diff.mOperations.add(new int[]{REMOVE, i, i});
+            }
+        }
+
+        for (int i = 0; i < newItems.size(); i++) {
+            T newItem = newItems.get(i);
+            String id = callback.getId(newItem);
+            int from = indexOf(working, id, i, callback);
+            if (from == -1) {
+                working.add(i, newItem);
+                diff.mOperations.add(new int[]{INSERT, i, i});
+                continue;
+            }
+            if (from != i) {
+                working.add(i, working.remove(from));
+                diff.mOperations.add(new int[]{MOVE, from, i});
+            }
+            if (!callback.hasSameContent(working.get(i), newItem)) {
+                diff.mOperations.add(new int[]{CHANGE, i, i});
+            }
+        }
+
+        // Duplicate ids in the new list leave extra rows behind; drop them.
+        for (int i = working.size() - 1; i >= newItems.size(); i--) {
+            diff.mOperations.add(new int[]{REMOVE, i, i});
+        }
+        return diff;
+    }
+
+    private static <T> int indexOf(List<T> items, String id, int start, ItemCallback<T> callback) {
+        for (int i = start; i < items.size(); i++) {
+            if (id != null && id.equals(callback.getId(items.get(i)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    /**
+     * Notifies the adapter of each change. Its data must already hold the new items.
+     */
+    public void dispatchUpdatesTo(RecyclerView.Adapter adapter) {
+        for (int[] operation : mOperations) {
+            switch (operation[0]) {
+                case REMOVE:
+                    adapter.notifyItemRemoved(operation[1]);
+                    break;
+                case INSERT:
+                    adapter.notifyItemInserted(operation[1]);
+                    break;
+                case MOVE:
+                    adapter.notifyItemMoved(operation[1], operation[2]);
+                    break;
+                case CHANGE:
+                    adapter.notifyItemChanged(operation[1]);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.Image;
+import retrofit.converter.ConversionException;
+import retrofit.converter.Converter;
+import retrofit.mime.MimeUtil;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Retrofit converter that streams artist search and top track responses straight into
+ * Artist and Track on the calling thread. Only the fields the app shows are read; markets,
+ * external urls, popularity and the like are skipped without being materialized.
+ * Every other type is handed to the delegate converter.
+ *
+ * @see SpotifyModelService
+ */
+public class ModelConverter implements Converter {
+
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private final Converter mDelegate;
+
+    public ModelConverter(Converter delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public Object fromBody(TypedInput body, Type type) throws ConversionException {
+        if (type != ArtistPage.class && !isTrackList(type)) {
+            return mDelegate.fromBody(body, type);
+        }
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(body.in(), MimeUtil.parseCharset(body.mimeType(), DEFAULT_CHARSET)));
+            return type == ArtistPage.class ? readArtistSearch(reader) : readTopTracks(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new ConversionException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    @Override
+    public TypedOutput toBody(Object object) {
+        return mDelegate.toBody(object);
+    }
+
+    private static boolean isTrackList(Type type) {
+        if (!(type instanceof ParameterizedType)) {
+            return false;
+        }
+        ParameterizedType parameterizedType = (ParameterizedType) type;
+        return parameterizedType.getRawType() == List.class
+                && parameterizedType.getActualTypeArguments()[0] == Track.class;
+    }
+
+    private static ArtistPage readArtistSearch(JsonReader reader) throws IOException {
+        ArtistPage page = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("artists".equals(reader.nextName())) {
+                page = readArtistPage(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (page == null) {
+            throw new IOException("Search response has no artists");
+        }
+        return page;
+    }
+
+    private static ArtistPage readArtistPage(JsonReader reader) throws IOException {
+        List<Artist> artists = new ArrayList<>();
+        int total = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("items".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    artists.add(readArtist(reader));
+                }
+                reader.endArray();
+            } else if ("total".equals(name)) {
+                total = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new ArtistPage(artists, total);
+    }
+
+    private static Artist readArtist(JsonReader reader) throws IOException {
+        String id = null;
+        String name = null;
+        List<Image> images = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if ("id".equals(field)) {
+                id = nextString(reader);
+            } else if ("name".equals(field)) {
+                name = nextString(reader);
+            } else if ("images".equals(field)) {
+                images = readImages(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Artist(id, name, new ImageVariants(images));
+    }
+
+    private static List<Track> readTopTracks(JsonReader reader) throws IOException {
+        List<Track> tracks = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("tracks".equals(reader.nextName())) {
+                tracks = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    tracks.add(readTrack(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (tracks == null) {
+            throw new IOException("Top tracks response has no tracks");
+        }
+        return tracks;
+    }
+
+    private static Track readTrack(JsonReader reader) throws IOException {
+        String id = null;
+        String name = null;
+        String albumName = null;
+        List<Image> images = null;
+        String previewUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if ("id".equals(field)) {
+                id = nextString(reader);
+            } else if ("name".equals(field)) {
+                name = nextString(reader);
+            } else if ("preview_url".equals(field)) {
+                previewUrl = nextString(reader);
+            } else if ("album".equals(field) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String albumField = reader.nextName();
+                    if ("name".equals(albumField)) {
+                        albumName = nextString(reader);
+                    } else if ("images".equals(albumField)) {
+                        images = readImages(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Track(id, name, albumName, new ImageVariants(images), previewUrl);
+    }
+
+    private static List<Image> readImages(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        List<Image> images = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Image image = new Image();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if ("url".equals(field)) {
+                    image.url = nextString(reader);
+                } else if ("width".equals(field)) {
+                    image.width = nextInteger(reader);
+                } else if ("height".equals(field)) {
+                    image.height = nextInteger(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            images.add(image);
+        }
+        reader.endArray();
+        return images;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static Integer nextInteger(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextInt();
+    }
+}
@@ -1,13 +1,15 @@
 package com.mpayne.android.spotifystreamer;
 
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.DialogFragment;
-import android.support.v4.content.LocalBroadcastManager;
-import android.util.Patterns;
+import android.support.v4.view.ViewCompat;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -17,7 +19,7 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 import com.mpayne.android.spotifystreamer.service.MusicPlayerService;
-import com.squareup.picasso.Picasso;
+import com.mpayne.android.spotifystreamer.service.PlaybackState;
 
 
 /**
@@ -27,10 +29,14 @@ import com.squareup.picasso.Picasso;
 public class MusicPlayerFragment extends DialogFragment {
 
     private final String TAG = MusicPlayerFragment.class.getSimpleName();
+    // Corrects extrapolated progress for buffering stalls while the player is shown.
+    private final int PLAYBACK_SYNC_INTERVAL_MILLIS = 1000;
 
     TextView mArtistName;
     TextView mAlbumName;
     ImageView mAlbumImage;
+    int mAlbumImageWidth;
+    int mAlbumImageHeight;
     TextView mTrackName;
     SeekBar mTrackProgressBar;
     TextView mTrackProgress;
@@ -42,23 +48,33 @@ public class MusicPlayerFragment extends DialogFragment {
 
     int mSeekBarProgress;
 
+    boolean mTrackingTouch;
+
     private Artist mArtist;
     private Track mTrack;
 
+    private MusicPlayerService mService;
+    private PlaybackState mPlaybackState = PlaybackState.EMPTY;
+    private int mShownProgressSeconds = -1;
+    private int mShownDuration = -1;
+    private boolean mProgressUpdateScheduled;
+
     @Override
     public void onResume() {
         super.onResume();
-        // Register to receive information from MusicPlayerService.
-        IntentFilter intentFilter = new IntentFilter(MusicPlayerService.ACTION_TRACK_DETAIL);
-        intentFilter.addAction(MusicPlayerService.ACTION_TRACK_PLAY_STATUS);
-        intentFilter.addAction(MusicPlayerService.ACTION_TRACK_PROGRESS);
-        intentFilter.addAction(MusicPlayerService.ACTION_TRACK_DURATION);
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mMessageReceiver, intentFilter);
+        // Bind to receive playback snapshots from MusicPlayerService.
+        Intent intent = new Intent(getActivity(), MusicPlayerService.class);
+        getActivity().bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     public void onPause() {
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mMessageReceiver);
+        if(mService != null) {
+            mService.removePlaybackStateListener(mPlaybackStateListener);
+            mService = null;
+        }
+        getActivity().unbindService(mServiceConnection);
+        stopProgressUpdates();
         super.onPause();
     }
 
@@ -71,6 +87,8 @@ public class MusicPlayerFragment extends DialogFragment {
         mArtistName = (TextView) view.findViewById(R.id.textview_artist_name);
         mAlbumName = (TextView) view.findViewById(R.id.textview_album_name);
         mAlbumImage = (ImageView) view.findViewById(R.id.imageview_album_image);
+        mAlbumImageWidth = getResources().getDimensionPixelSize(R.dimen.music_player_album_image_width);
+        mAlbumImageHeight = getResources().getDimensionPixelSize(R.dimen.music_player_album_image_height);
         mTrackName = (TextView) view.findViewById(R.id.textview_track_name);
         mTrackProgressBar = (SeekBar)view.findViewById(R.id.seekbar_track_progress);
         mTrackProgress = (TextView) view.findViewById(R.id.textview_track_progress);
@@ -119,10 +137,13 @@ public class MusicPlayerFragment extends DialogFragment {
             }
 
             @Override
-            public void onStartTrackingTouch(SeekBar seekBar) {}
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                mTrackingTouch = true;
+            }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                mTrackingTouch = false;
                 // Notify MusicPlayerService of change
                 Intent intent = new Intent(getActivity(), MusicPlayerService.class);
                 intent.setAction(MusicPlayerService.ACTION_CHANGE_TRACK_PROGRESS);
@@ -139,50 +160,102 @@ public class MusicPlayerFragment extends DialogFragment {
         return view;
     }
 
-    private BroadcastReceiver mMessageReceiver = new BroadcastReceiver() {
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((MusicPlayerService.LocalBinder) binder).getService();
+            mService.addPlaybackStateListener(mPlaybackStateListener, PLAYBACK_SYNC_INTERVAL_MILLIS);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+            stopProgressUpdates();
+        }
+    };
+
+    private final MusicPlayerService.PlaybackStateListener mPlaybackStateListener =
+            new MusicPlayerService.PlaybackStateListener() {
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-
-            switch (intent.getAction()) {
-                case MusicPlayerService.ACTION_TRACK_DETAIL:
-                    // Populate currently playing information
-                    mArtistName.setText(intent.getStringExtra(MusicPlayerService.EXTRA_ARTIST_NAME));
-                    mTrack = intent.getParcelableExtra(MusicPlayerService.EXTRA_TRACK);
-                    mAlbumName.setText(mTrack.albumName);
-                    if(null != mTrack.imageUrlLarge && Patterns.WEB_URL.matcher(mTrack.imageUrlLarge).matches()) {
-                        Picasso.with(getActivity()).load(mTrack.imageUrlLarge).into(mAlbumImage);
-                    }
-                    mTrackName.setText(mTrack.name);
-                    break;
-                case MusicPlayerService.ACTION_TRACK_PLAY_STATUS:
-                    // Toggle Play/Pause depending on playing status.
-                    boolean trackIsPlaying = intent.getBooleanExtra(MusicPlayerService.EXTRA_TRACK_IS_PLAYING, false);
-                    if(trackIsPlaying) {
-                        mPlayButton.setVisibility(View.GONE);
-                        mPauseButton.setVisibility(View.VISIBLE);
-                    } else {
-                        mPlayButton.setVisibility(View.VISIBLE);
-                        mPauseButton.setVisibility(View.GONE);
-                    }
-                    break;
-                case MusicPlayerService.ACTION_TRACK_PROGRESS:
-                    // Set progress bar and timer
-                    int progress = intent.getIntExtra(MusicPlayerService.EXTRA_TRACK_PROGRESS, 0);
-                    mTrackProgressBar.setProgress(progress);
-                    mTrackProgress.setText(String.format("%d:%02d", progress / (60000), (progress / 1000) % 60));
-                    break;
-                case MusicPlayerService.ACTION_TRACK_DURATION:
-                    // Set track duration
-                    int duration = intent.getIntExtra(MusicPlayerService.EXTRA_TRACK_DURATION, 0);
-                    mTrackProgressBar.setMax(duration);
-                    mTrackDuration.setText(String.format("%d:%02d", duration / (60000), (duration / 1000) % 60));
-                    break;
+        public void onPlaybackStateChanged(PlaybackState state) {
+            mPlaybackState = state;
+            Track track = state.getTrack();
+            if(track != null && (mTrack == null || !TextUtils.equals(mTrack.id, track.id))) {
+                // Populate currently playing information
+                mTrack = track;
+                mArtistName.setText(state.getArtistName());
+                mAlbumName.setText(mTrack.albumName);
+                ImageLoader.loadArtwork(mAlbumImage,
+                        ImageRequest.artwork(mTrack.images, mAlbumImageWidth, mAlbumImageHeight));
+                mTrackName.setText(mTrack.name);
+            }
+
+            // Toggle Play/Pause depending on playing status.
+            if(state.isPlaying()) {
+                mPlayButton.setVisibility(View.GONE);
+                mPauseButton.setVisibility(View.VISIBLE);
+            } else {
+                mPlayButton.setVisibility(View.VISIBLE);
+                mPauseButton.setVisibility(View.GONE);
+            }
+
+            // Set track duration
+            int duration = Math.max(state.getDuration(), 0);
+            if(duration != mShownDuration) {
+                mShownDuration = duration;
+                mTrackProgressBar.setMax(duration);
+                mTrackDuration.setText(String.format("%d:%02d", duration / (60000), (duration / 1000) % 60));
+            }
+
+            showProgress(state.getCurrentPosition());
+            if(state.isPlaying()) {
+                scheduleProgressUpdate();
+            } else {
+                stopProgressUpdates();
             }
         }
+    };
 
+    /**
+     * Advances the progress bar from the last snapshot once per frame while playing.
+     */
+    private final Runnable mUpdateProgress = new Runnable() {
+        @Override
+        public void run() {
+            mProgressUpdateScheduled = false;
+            showProgress(mPlaybackState.getCurrentPosition());
+            if(mService != null && mPlaybackState.isPlaying()) {
+                scheduleProgressUpdate();
+            }
+        }
     };
 
+    private void scheduleProgressUpdate() {
+        if(!mProgressUpdateScheduled) {
+            mProgressUpdateScheduled = true;
+            ViewCompat.postOnAnimation(mTrackProgressBar, mUpdateProgress);
+        }
+    }
+
+    private void stopProgressUpdates() {
+        mTrackProgressBar.removeCallbacks(mUpdateProgress);
+        mProgressUpdateScheduled = false;
+    }
+
+    private void showProgress(int progress) {
+        // Leave the bar under the user's finger while scrubbing.
+        if(!mTrackingTouch) {
+            mTrackProgressBar.setProgress(progress);
+        }
+        int seconds = progress / 1000;
+        if(seconds != mShownProgressSeconds) {
+            mShownProgressSeconds = seconds;
+            mTrackProgress.setText(String.format("%d:%02d", progress / (60000), seconds % 60));
+        }
+    }
+
     private void resumeTrack() {
         Intent intent = new Intent(getActivity(), MusicPlayerService.class);
         intent.setAction(MusicPlayerService.ACTION_RESUME_TRACK);
@@ -198,12 +271,14 @@ public class MusicPlayerFragment extends DialogFragment {
     private void playNextTrack() {
         Intent intent = new Intent(getActivity(), MusicPlayerService.class);
         intent.setAction(MusicPlayerService.ACTION_PLAY_NEXT_TRACK);
+        intent.putExtra(MusicPlayerService.EXTRA_REQUESTED_AT, SystemClock.elapsedRealtime());
         getActivity().startService(intent);
     }
 
     private void playPreviousTrack() {
         Intent intent = new Intent(getActivity(), MusicPlayerService.class);
         intent.setAction(MusicPlayerService.ACTION_PLAY_PREVIOUS_TRACK);
+        intent.putExtra(MusicPlayerService.EXTRA_REQUESTED_AT, SystemClock.elapsedRealtime());
         getActivity().startService(intent);
     }
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Debug counters for a result list: main thread time spent binding rows and applying new
+ * results, and frame times while the list is on screen. Frame times need Choreographer and
+ * are only recorded on Jelly Bean and later.
+ */
+public class RenderStats {
+
+    // Frames taking longer than this missed at least one vsync at 60fps.
+    private static final long JANK_FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(17);
+
+    private final String mName;
+
+    private int mBindCount;
+    private long mBindNanos;
+    private long mMaxBindNanos;
+    private int mApplyCount;
+    private long mApplyNanos;
+    private long mMaxApplyNanos;
+    private int mFrameCount;
+    private int mJankFrameCount;
+    private long mMaxFrameNanos;
+    private long mLastFrameNanos;
+    private boolean mRunning;
+    private Object mFrameCallback;
+
+    public RenderStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Records main thread time spent binding one row.
+     */
+    public void recordBind(long nanos) {
+        mBindCount++;
+        mBindNanos += nanos;
+        mMaxBindNanos = Math.max(mMaxBindNanos, nanos);
+    }
+
+    /**
+     * Records main thread time spent swapping in a new result and dispatching its updates.
+     */
+    public void recordApply(long nanos) {
+        mApplyCount++;
+        mApplyNanos += nanos;
+        mMaxApplyNanos = Math.max(mMaxApplyNanos, nanos);
+    }
+
+    /**
+     * Starts recording frame times. Must be called on the main thread.
+     */
+    public void start() {
+        if (mRunning || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameNanos = 0;
+        postFrameCallback();
+    }
+
+    public void stop() {
+        mRunning = false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    if (mLastFrameNanos != 0) {
+                        long frameNanos = frameTimeNanos - mLastFrameNanos;
+                        mFrameCount++;
+                        mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+                        if (frameNanos > JANK_FRAME_NANOS) {
+                            mJankFrameCount++;
+                        }
+                    }
+                    mLastFrameNanos = frameTimeNanos;
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s[binds=%d,bindMs=%.1f,maxBindMs=%.2f,applies=%d,applyMs=%.1f,"
+                        + "maxApplyMs=%.2f,frames=%d,jankFrames=%d,maxFrameMs=%.1f]",
+                mName, mBindCount, mBindNanos / 1e6, mMaxBindNanos / 1e6, mApplyCount, mApplyNanos / 1e6,
+                mMaxApplyNanos / 1e6, mFrameCount, mJankFrameCount, mMaxFrameNanos / 1e6);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kaaes.spotify.webapi.android.SpotifyApi;
+import kaaes.spotify.webapi.android.SpotifyService;
+import retrofit.RestAdapter;
+import retrofit.converter.GsonConverter;
+
+/**
+ * Process-wide holder for the SpotifyService so every request shares one OkHttp client,
+ * connection pool and TLS session instead of building a new RestAdapter per call.
+ * OkHttp requests gzip and decompresses responses transparently.
+ *
+ * Search and top track responses are kept in a size-bounded disk cache under the app cache
+ * directory, with a freshness lifetime configured per endpoint in integers.xml.
+ */
+public final class SpotifyClient {
+
+    private final String TAG = SpotifyClient.class.getSimpleName();
+
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 15;
+    private static final long WRITE_TIMEOUT_SECONDS = 15;
+
+    private static final String CACHE_DIRECTORY = "spotify-http";
+    private static final long CACHE_SIZE_BYTES = 10 * 1024 * 1024;
+    private static final String SEARCH_PATH = "/v1/search";
+    private static final String TOP_TRACKS_PATH_SUFFIX = "/top-tracks";
+    private static final String STALE_WARNING = "110";
+
+    /**
+     * Serves any cached response regardless of age, failing with 504 if nothing is cached.
+     */
+    public static final CacheControl CACHE_ONLY_ALLOW_STALE = new CacheControl.Builder()
+            .onlyIfCached()
+            .maxStale(Integer.MAX_VALUE, TimeUnit.SECONDS)
+            .build();
+
+    private static final ThreadLocal<CacheControl> sCacheControl = new ThreadLocal<>();
+    private static final ThreadLocal<Boolean> sLastResponseStale = new ThreadLocal<>();
+    // Url of a cache-only probe that missed, whose network revalidation is the same fetch.
+    private static final ThreadLocal<String> sProbedUrl = new ThreadLocal<>();
+
+    private static volatile SpotifyClient sInstance;
+
+    private final OkHttpClient mHttpClient;
+    private final CancellableOkClient mClient;
+    private final SpotifyService mService;
+    private final SpotifyModelService mModelService;
+
+    private final int mSearchFreshnessSeconds;
+    private final int mTopTracksFreshnessSeconds;
+    private final AtomicLong mBytesServedFromCache = new AtomicLong();
+    private final AtomicInteger mCacheHitCount = new AtomicInteger();
+    private final AtomicInteger mCacheRequestCount = new AtomicInteger();
+
+    private SpotifyClient(Context context) {
+        this(context, SpotifyApi.SPOTIFY_WEB_API_ENDPOINT, new File(context.getCacheDir(), CACHE_DIRECTORY));
+    }
+
+    /**
+     * Creates a client for another endpoint with its own response cache, e.g. a local stand-in.
+     */
+    SpotifyClient(Context context, String endpoint, File cacheDirectory) {
+        Resources resources = context.getResources();
+        mSearchFreshnessSeconds = resources.getInteger(R.integer.cache_freshness_search_seconds);
+        mTopTracksFreshnessSeconds = resources.getInteger(R.integer.cache_freshness_top_tracks_seconds);
+
+        mHttpClient = new OkHttpClient();
+        mHttpClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MILLIS));
+        mHttpClient.setConnectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mHttpClient.setReadTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mHttpClient.setWriteTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try {
+            mHttpClient.setCache(new Cache(cacheDirectory, CACHE_SIZE_BYTES));
+        } catch (IOException e) {
+            // Carry on uncached rather than failing every request.
+            Log.e(TAG, "Unable to open response cache", e);
+        }
+        mHttpClient.interceptors().add(mCacheControlInterceptor);
+        mHttpClient.networkInterceptors().add(mFreshnessInterceptor);
+
+        mClient = new CancellableOkClient(mHttpClient);
+        RestAdapter restAdapter = new RestAdapter.Builder()
+                .setEndpoint(endpoint)
+                .setClient(mClient)
+                .setConverter(new ModelConverter(new GsonConverter(new Gson())))
+                .build();
+        mService = restAdapter.create(SpotifyService.class);
+        mModelService = restAdapter.create(SpotifyModelService.class);
+    }
+
+    /**
+     * Returns the shared client, creating it on first use.
+     */
+    public static SpotifyClient getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (SpotifyClient.class) {
+                if (sInstance == null) {
+                    sInstance = new SpotifyClient(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replaces the shared client, e.g. with one for a local stand-in in tests.
+     * Passing null goes back to the Spotify endpoint on next use.
+     */
+    static void setInstance(SpotifyClient client) {
+        synchronized (SpotifyClient.class) {
+            sInstance = client;
+        }
+    }
+
+    public SpotifyService getService() {
+        return mService;
+    }
+
+    /**
+     * Returns the service for search and top tracks, which maps responses straight to app models.
+     */
+    public SpotifyModelService getModelService() {
+        return mModelService;
+    }
+
+    public OkHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * Cancels in-flight calls made with the given tag.
+     *
+     * @see CancellableOkClient#setRequestTag(Object)
+     */
+    public void cancel(Object tag) {
+        mClient.cancel(tag);
+    }
+
+    /**
+     * Options for top track requests. Every caller uses the same ones so they share cache entries.
+     */
+    public static Map<String, Object> getTopTrackOptions() {
+        Map<String, Object> options = new HashMap<>();
+        options.put(SpotifyService.COUNTRY, Locale.getDefault().getCountry());
+        return options;
+    }
+
+    /**
+     * Applies a cache policy to calls made from the current thread until {@link #clearCacheControl()}.
+     */
+    public static void setCacheControl(CacheControl cacheControl) {
+        sCacheControl.set(cacheControl);
+    }
+
+    public static void clearCacheControl() {
+        sCacheControl.remove();
+    }
+
+    /**
+     * Checks whether the last call made from the current thread was answered with a stale cached response.
+     */
+    public static boolean isLastResponseStale() {
+        Boolean stale = sLastResponseStale.get();
+        return stale != null && stale;
+    }
+
+    /**
+     * Fetches answered by a fresh cached response without touching the network.
+     */
+    public int getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * Fetches made, counting a cache-only probe and the revalidation that follows it as one.
+     * OkHttp's own cache counters see both requests.
+     */
+    public int getCacheRequestCount() {
+        return mCacheRequestCount.get();
+    }
+
+    public float getCacheHitRatio() {
+        int requestCount = getCacheRequestCount();
+        return requestCount == 0 ? 0f : (float) getCacheHitCount() / requestCount;
+    }
+
+    /**
+     * Bytes of response bodies served from disk without touching the network.
+     */
+    public long getBytesServedFromCache() {
+        return mBytesServedFromCache.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "SpotifyClient[cacheHits=%d/%d,hitRatio=%.2f,bytesSaved=%d]",
+                getCacheHitCount(), getCacheRequestCount(), getCacheHitRatio(), getBytesServedFromCache());
+    }
+
+    /**
+     * Applies the calling thread's cache policy and records how the response was served.
+     */
+    private final Interceptor mCacheControlInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            CacheControl cacheControl = sCacheControl.get();
+            if (cacheControl != null) {
+                request = request.newBuilder().cacheControl(cacheControl).build();
+            }
+            boolean probe = request.cacheControl().onlyIfCached();
+            // Only the request right after a missed probe can be its revalidation.
+            boolean revalidation = !probe && request.urlString().equals(sProbedUrl.get());
+            sProbedUrl.remove();
+            sLastResponseStale.remove();
+            Response response = chain.proceed(request);
+            boolean fromCache = response.networkResponse() == null && response.cacheResponse() != null;
+            boolean stale = false;
+            if (fromCache) {
+                String warning = response.header("Warning");
+                stale = warning != null && warning.startsWith(STALE_WARNING);
+                sLastResponseStale.set(stale);
+                long contentLength = response.body().contentLength();
+                if (contentLength > 0) {
+                    mBytesServedFromCache.addAndGet(contentLength);
+                }
+            }
+            if (!revalidation) {
+                mCacheRequestCount.incrementAndGet();
+                if (fromCache && !stale) {
+                    mCacheHitCount.incrementAndGet();
+                } else if (probe) {
+                    sProbedUrl.set(request.urlString());
+                }
+            }
+            return response;
+        }
+    };
+
+    /**
+     * Overrides the server's caching headers with the freshness configured for each endpoint.
+     */
+    private final Interceptor mFreshnessInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Response response = chain.proceed(chain.request());
+            int freshnessSeconds = getFreshnessSeconds(chain.request().url().getPath());
+            if (freshnessSeconds <= 0 || !response.isSuccessful()) {
+                return response;
+            }
+            return response.newBuilder()
+                    .removeHeader("Pragma")
+                    .header("Cache-Control", "public, max-age=" + freshnessSeconds)
+                    .build();
+        }
+    };
+
+    private int getFreshnessSeconds(String path) {
+        if (path.startsWith(SEARCH_PATH)) {
+            return mSearchFreshnessSeconds;
+        } else if (path.endsWith(TOP_TRACKS_PATH_SUFFIX)) {
+            return mTopTracksFreshnessSeconds;
+        }
+        return 0;
+    }
+}
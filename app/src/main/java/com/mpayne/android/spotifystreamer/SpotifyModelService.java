@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import java.util.List;
+import java.util.Map;
+
+import retrofit.http.GET;
+import retrofit.http.Path;
+import retrofit.http.Query;
+import retrofit.http.QueryMap;
+
+/**
+ * The Spotify endpoints the lists are filled from, answered with this app's own models.
+ * Paths and queries match SpotifyService so both share HTTP cache entries.
+ *
+ * @see ModelConverter
+ */
+public interface SpotifyModelService {
+
+    @GET("/search?type=artist")
+    ArtistPage searchArtists(@Query("q") String q);
+
+    @GET("/search?type=artist")
+    ArtistPage searchArtists(@Query("q") String q, @QueryMap Map<String, Object> options);
+
+    @GET("/artists/{id}/top-tracks")
+    List<Track> getArtistTopTrack(@Path("id") String artistId, @QueryMap Map<String, Object> options);
+}
@@ -18,8 +18,6 @@ package com.mpayne.android.spotifystreamer;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import kaaes.spotify.webapi.android.models.Image;
-
 /**
  * Defines track information for display and implements Parcelable to retain data on screen rotation.
  */
@@ -38,8 +36,7 @@ public class Track implements Parcelable {
     String id;
     String name;
     String albumName;
-    String imageUrlSmall;
-    String imageUrlLarge;
+    ImageVariants images;
     String previewUrl;
 
     /**
@@ -51,51 +48,23 @@ public class Track implements Parcelable {
         this.id = track.id;
         this.name = track.name;
         this.albumName = track.album.name;
-        if (!track.album.images.isEmpty()) {
-            if(track.album.images.size() > 1)
-            {
-                // Iterate and use two smallest image sizes
-                int image1Dimension = 0;
-                int image2Dimension = 0;
-                int temp;
-                for (Image image : track.album.images) {
-                    temp = image.height * image.width;
-                    // set image1Dimension first time
-                    if(image1Dimension == 0) {
-                        image1Dimension = temp;
-                        imageUrlSmall = image.url;
-                    }
-                    // set image2Dimension first time
-                    if(image2Dimension == 0) {
-                        image2Dimension = temp;
-                        imageUrlLarge = image.url;
-                    }
-                    // set image1Dimension to smallest possible
-                    if(temp < image1Dimension) {
-                        image1Dimension = temp;
-                        imageUrlSmall = image.url;
-                    }
-                    // set image2Dimension to smallest possible but larger than image1Dimension
-                    if(temp > image1Dimension && temp < image2Dimension) {
-                        image2Dimension = temp;
-                        imageUrlLarge = image.url;
-                    }
-                }
-            } else {
-                imageUrlSmall = track.album.images.get(0).url;
-                imageUrlLarge = imageUrlSmall;
-            }
-
-        }
+        this.images = new ImageVariants(track.album.images);
         this.previewUrl = track.preview_url;
     }
 
+    public Track(String id, String name, String albumName, ImageVariants images, String previewUrl) {
+        this.id = id;
+        this.name = name;
+        this.albumName = albumName;
+        this.images = images;
+        this.previewUrl = previewUrl;
+    }
+
     public Track(Parcel in) {
         id = in.readString();
         name = in.readString();
         albumName = in.readString();
-        imageUrlSmall = in.readString();
-        imageUrlLarge = in.readString();
+        images = in.readParcelable(ImageVariants.class.getClassLoader());
         previewUrl = in.readString();
 
     }
@@ -110,8 +79,7 @@ public class Track implements Parcelable {
         dest.writeString(id);
         dest.writeString(name);
         dest.writeString(albumName);
-        dest.writeString(imageUrlSmall);
-        dest.writeString(imageUrlLarge);
+        dest.writeParcelable(images, flags);
         dest.writeString(previewUrl);
     }
 
@@ -123,8 +91,12 @@ public class Track implements Parcelable {
         return name;
     }
 
-    public String getImageUrlSmall() {
-        return imageUrlSmall;
+    public String getAlbumName() {
+        return albumName;
+    }
+
+    public ImageVariants getImages() {
+        return images;
     }
 
     public String getPreviewUrl() {
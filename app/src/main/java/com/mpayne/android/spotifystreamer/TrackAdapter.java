@@ -16,61 +16,115 @@
 package com.mpayne.android.spotifystreamer;
 
 import android.content.Context;
-import android.util.Patterns;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.squareup.picasso.Picasso;
-
-import java.util.ArrayList;
+import java.util.List;
 
 
 /**
  * Adapter for populating track list view.
  */
-public class TrackAdapter extends ArrayAdapter<Track> {
+public class TrackAdapter extends DiffListAdapter<Track, TrackAdapter.TrackRow, TrackAdapter.ViewHolder> {
+
+    /**
+     * Receives row clicks.
+     */
+    public interface Listener {
+        void onTrackClicked(int position);
+    }
 
-    ArrayList<Track> tracks;
+    private final Context mContext;
+    private final Listener mListener;
+    // Tag of this list's thumbnail requests.
+    private final Object mImageTag;
 
-    public TrackAdapter(Context context, int resourceID, ArrayList<Track> tracks) {
-        super(context, 0, tracks);
-        this.tracks = tracks;
+    // Thumbnail size in pixels used to pick an image variant.
+    private final int mImageSize;
+
+    public TrackAdapter(Context context, Object imageTag, Listener listener) {
+        super(TrackAdapter.class.getSimpleName());
+        mContext = context;
+        mImageTag = imageTag;
+        mListener = listener;
+        mImageSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
+    }
+
+    /**
+     * Replaces the tracks, keeping rows for tracks that are still listed.
+     */
+    public void setTracks(List<Track> tracks) {
+        submitList(tracks);
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ViewHolder viewHolder;
-
-        if (convertView == null) {
-            convertView = LayoutInflater.from(getContext()).inflate(R.layout.listitem_track, parent, false);
-            viewHolder = new ViewHolder(convertView);
-            convertView.setTag(viewHolder);
-        } else {
-            viewHolder = (ViewHolder) convertView.getTag();
-        }
+    protected TrackRow createRow(Track track) {
+        return new TrackRow(track, ImageRequest.thumbnail(track.images, mImageSize));
+    }
 
-        Track track = tracks.get(position);
+    @Override
+    public boolean hasSameContent(TrackRow oldRow, TrackRow newRow) {
+        return TextUtils.equals(oldRow.name, newRow.name)
+                && TextUtils.equals(oldRow.albumName, newRow.albumName)
+                && TextUtils.equals(oldRow.image.url, newRow.image.url);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.listitem_track, parent, false);
+        final ViewHolder viewHolder = new ViewHolder(view);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = viewHolder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    mListener.onTrackClicked(position);
+                }
+            }
+        });
+        return viewHolder;
+    }
 
-        viewHolder.trackName.setText(track.name);
-        viewHolder.albumName.setText(track.albumName);
-        if(null != track.imageUrlSmall && Patterns.WEB_URL.matcher(track.imageUrlSmall).matches())
-        {
-            Picasso.with(getContext()).load(track.imageUrlSmall).into(viewHolder.albumImage);
+    @Override
+    protected void onBindRow(ViewHolder viewHolder, TrackRow row) {
+        viewHolder.trackName.setText(row.name);
+        viewHolder.albumName.setText(row.albumName);
+        // Rebinding the same row keeps the image already loading or shown.
+        if (viewHolder.boundImage != row.image) {
+            viewHolder.boundImage = row.image;
+            ImageLoader.loadThumbnail(viewHolder.albumImage, row.image, mImageTag);
         }
+    }
 
-        return convertView;
+    /**
+     * Track and album names and the album thumbnail picked for the row size.
+     */
+    static class TrackRow extends DiffListAdapter.Row<Track> {
+        final String name;
+        final String albumName;
+        final ImageRequest image;
+
+        TrackRow(Track track, ImageRequest image) {
+            super(track, track.id);
+            this.name = track.name;
+            this.albumName = track.albumName;
+            this.image = image;
+        }
     }
 
-    private static class ViewHolder {
+    static class ViewHolder extends RecyclerView.ViewHolder {
         TextView trackName;
         TextView albumName;
         ImageView albumImage;
+        ImageRequest boundImage;
 
         public ViewHolder(View view) {
+            super(view);
             trackName = (TextView) view.findViewById(R.id.textview_track_name);
             albumName = (TextView) view.findViewById(R.id.textview_album_name);
             albumImage = (ImageView) view.findViewById(R.id.imageview_track_album);
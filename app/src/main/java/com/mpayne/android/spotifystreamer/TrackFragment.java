@@ -22,23 +22,17 @@ import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
-import kaaes.spotify.webapi.android.SpotifyApi;
-import kaaes.spotify.webapi.android.SpotifyService;
-import kaaes.spotify.webapi.android.models.Tracks;
-
 
 /**
  * Searches for and displays artist top tracks.
@@ -58,6 +52,9 @@ public class TrackFragment extends Fragment {
 
     private Artist mArtist;
 
+    private SpotifyClient mSpotifyClient;
+    private final ImageLoader.ListTag mImageTag = new ImageLoader.ListTag();
+
     /**
      * Interface activities must implement when using this fragment.
      */
@@ -74,52 +71,69 @@ public class TrackFragment extends Fragment {
         Bundle arguments = getArguments();
         if (arguments != null) {
             artistId = arguments.getString(Intent.EXTRA_TEXT);
-            mArtist = arguments.getParcelable(Artist.class.getSimpleName());
+            mArtist = EntityStore.getInstance().putArtist(arguments.<Artist>getParcelable(Artist.class.getSimpleName()));
         } else {
             Intent intent = getActivity().getIntent();
             if (intent != null && intent.hasExtra(Intent.EXTRA_TEXT)) {
                 artistId = intent.getStringExtra(Intent.EXTRA_TEXT);
-                mArtist = intent.getParcelableExtra(Artist.class.getSimpleName());
+                mArtist = EntityStore.getInstance().putArtist(intent.<Artist>getParcelableExtra(Artist.class.getSimpleName()));
             }
         }
 
         View rootView = inflater.inflate(R.layout.fragment_track, container, false);
-        ListView mTrackListView = (ListView) rootView.findViewById(R.id.listview_track);
+        RecyclerView trackRecyclerView = (RecyclerView) rootView.findViewById(R.id.recyclerview_track);
+        trackRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        trackRecyclerView.setHasFixedSize(true);
 
-        mTrackAdapter = new TrackAdapter(getActivity(), R.layout.listitem_track, new ArrayList<Track>());
-        mTrackListView.setAdapter(mTrackAdapter);
+        // Let activity handle when track is selected
+        mTrackAdapter = new TrackAdapter(getActivity(), mImageTag, new TrackAdapter.Listener() {
+
+            @Override
+            public void onTrackClicked(int position) {
+                // The position is into the shown rows, which lag a newer list still being diffed.
+                ((Callback) getActivity()).onTrackSelected(mArtist, mTrackAdapter.getShownItems(), position);
+            }
+        });
+        trackRecyclerView.setAdapter(mTrackAdapter);
+        mSpotifyClient = SpotifyClient.getInstance(getActivity());
         mMessageTextView = (TextView) rootView.findViewById(R.id.textview_message);
 
         // Check savedInstanceState for track list and message on orientation change.
         if (savedInstanceState != null) {
-            if(savedInstanceState.containsKey(KEY_TRACKS)) {
-                mTrackAdapter.addAll(savedInstanceState.<Track>getParcelableArrayList(KEY_TRACKS));
+            List<Track> savedTracks = EntityCodec.decodeTracks(savedInstanceState.getByteArray(KEY_TRACKS));
+            if(savedTracks != null) {
+                mTrackAdapter.setTracks(EntityStore.getInstance().putTracks(savedTracks));
             }
             mMessage = savedInstanceState.getString(KEY_MESSAGE);
             manageMessage();
         } else {
             // Default empty message
             mMessage = "";
-            // Search for tracks.
+            // Search for tracks unless already loaded or prefetched.
             if(!artistId.isEmpty()) {
-                new SearchTrackTask().execute(artistId);
+                List<Track> cachedTracks = EntityStore.getInstance().getTopTracks(artistId);
+                if (cachedTracks != null) {
+                    showTracks(cachedTracks);
+                    manageMessage();
+                } else {
+                    new SearchTrackTask().execute(artistId);
+                }
             }
 
         }
 
-        // Let activity handle when track is selected
-        mTrackListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-
-            @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                ((Callback) getActivity()).onTrackSelected(mArtist, mTrackAdapter.tracks, position);
-            }
-
-        });
+        // Pause thumbnails while flinging.
+        trackRecyclerView.addOnScrollListener(mImageTag);
 
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        mImageTag.cancelRequests(getActivity());
+        super.onDestroyView();
+    }
+
     /**
      * Checks for network availability.
      *
@@ -157,11 +171,23 @@ public class TrackFragment extends Fragment {
 
     }
 
+    /**
+     * Replaces the track list, showing a message if there are no tracks.
+     */
+    private void showTracks(List<Track> tracks) {
+        mTrackAdapter.setTracks(tracks);
+        // Display message if no tracks returned from search.
+        if(mTrackAdapter.isEmpty()) {
+            mMessage = NO_TRACKS_FOUND_MESSAGE;
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         // Save track list if available.
         if (mTrackAdapter != null && mTrackAdapter.getCount() > 0) {
-            outState.putParcelableArrayList(KEY_TRACKS, mTrackAdapter.tracks);
+            // One compact blob keeps long lists well under the binder transaction limit.
+            outState.putByteArray(KEY_TRACKS, EntityCodec.encodeTracks(mTrackAdapter.getItems()));
         }
         outState.putString(KEY_MESSAGE, mMessage);
         super.onSaveInstanceState(outState);
@@ -169,56 +195,95 @@ public class TrackFragment extends Fragment {
 
     /**
      *  Background task for retrieving and populating track list.
+     *  Cached tracks are published first; stale ones are then revalidated over the network.
+     *  Responses are mapped to tracks and stored on the background thread.
      */
-    public class SearchTrackTask extends AsyncTask<String, Void, Tracks> {
+    public class SearchTrackTask extends AsyncTask<String, List<Track>, List<Track>> {
 
         private final String LOG_TAG = SearchTrackTask.class.getSimpleName();
 
+        private String mArtistId;
+        // Message for the UI thread, applied once the task is done.
+        private String mTaskMessage;
+
         @Override
-        protected Tracks doInBackground(String... params) {
+        protected List<Track> doInBackground(String... params) {
 
             // Exit empty track searches.
             if (params.length == 0) {
                 return null;
             }
+            mArtistId = params[0];
 
-            Tracks tracks = null;
+            // Use shared SpotifyModelService to search for tracks.
+            Map<String, Object> options = SpotifyClient.getTopTrackOptions();
+            SpotifyModelService spotifyService = mSpotifyClient.getModelService();
+
+            // Serve cached tracks first, even when stale or offline.
+            List<Track> tracks = getCachedTracks(spotifyService, params[0], options);
+            if (tracks != null && !SpotifyClient.isLastResponseStale()) {
+                return EntityStore.getInstance().putTopTracks(mArtistId, tracks);
+            }
 
             if(isNetworkAvailable()) {
-                // Use SpotifyApi to search for tracks.
-                Map<String, Object> options = new HashMap<>();
-                options.put(SpotifyService.COUNTRY, Locale.getDefault().getCountry());
-                SpotifyApi spotifyApi = new SpotifyApi();
-                SpotifyService spotifyService = spotifyApi.getService();
+                if (tracks != null) {
+                    // Show stale tracks while revalidating.
+                    publishTracks(EntityStore.getInstance().putTracks(tracks));
+                }
                 try {
                     tracks = spotifyService.getArtistTopTrack(params[0], options);
                 } catch (Exception e) {
-                    // Display message if issues with SpotifyApi
-                    mMessage = SPOTIFY_NOT_AVAILABLE_MESSAGE;
+                    // Display message if issues with SpotifyApi and nothing cached
+                    if (tracks == null) {
+                        mTaskMessage = SPOTIFY_NOT_AVAILABLE_MESSAGE;
+                    }
                 }
-            } else {
+            } else if (tracks == null) {
                 // Display network not available message
-                mMessage = NETWORK_NOT_AVAILABLE_MESSAGE;
+                mTaskMessage = NETWORK_NOT_AVAILABLE_MESSAGE;
+            }
+            return tracks == null ? null : EntityStore.getInstance().putTopTracks(mArtistId, tracks);
+        }
+
+        /**
+         * Returns cached top tracks of any age or null if nothing is cached.
+         */
+        private List<Track> getCachedTracks(SpotifyModelService spotifyService, String artistId,
+                                            Map<String, Object> options) {
+            SpotifyClient.setCacheControl(SpotifyClient.CACHE_ONLY_ALLOW_STALE);
+            try {
+                return spotifyService.getArtistTopTrack(artistId, options);
+            } catch (Exception e) {
+                return null;
+            } finally {
+                SpotifyClient.clearCacheControl();
             }
-            return tracks;
+        }
+
+        /**
+         * Publishes one list of tracks. Progress is a generic type, so publishing it creates
+         * a generic array; only ever one element is passed.
+         */
+        @SuppressWarnings("unchecked")
+        private void publishTracks(List<Track> tracks) {
+            publishProgress(tracks);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void onProgressUpdate(List<Track>... values) {
+            showTracks(values[0]);
         }
 
         @Override
-        protected void onPostExecute(Tracks tracks) {
+        protected void onPostExecute(List<Track> tracks) {
             super.onPostExecute(tracks);
 
+            if (mTaskMessage != null) {
+                mMessage = mTaskMessage;
+            }
             if (tracks != null) {
-                mTrackAdapter.clear();
-                // Create a tracks list then add to adapter to prevent multiple refreshes
-                List<Track> trackList = new ArrayList<>();
-                for (kaaes.spotify.webapi.android.models.Track track : tracks.tracks) {
-                    trackList.add(new Track(track));
-                }
-                mTrackAdapter.addAll(trackList);
-                // Display message if no tracks returned from search.
-                if(mTrackAdapter.isEmpty()) {
-                    mMessage = NO_TRACKS_FOUND_MESSAGE;
-                }
+                showTracks(tracks);
             }
             manageMessage();
         }
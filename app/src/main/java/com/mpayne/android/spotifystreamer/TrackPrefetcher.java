@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mpayne.android.spotifystreamer;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches top tracks for artists the user is likely to open into EntityStore ahead of selection.
+ * Work runs on a small low priority pool and is budgeted per result set by request count and
+ * estimated bytes. Queued and in-flight work is dropped when the result set changes.
+ */
+public class TrackPrefetcher {
+
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    private static final int MAX_PREFETCHES_PER_RESULT = 10;
+    private static final long MAX_BYTES_PER_RESULT = 256 * 1024;
+
+    private final SpotifyClient mSpotifyClient;
+    private final ThreadPoolExecutor mExecutor;
+
+    // State for the current result set, guarded by this.
+    private final Set<String> mRequestedArtistIds = new HashSet<>();
+    private final List<PrefetchTask> mTasks = new ArrayList<>();
+    private int mGeneration;
+    private long mBytesFetched;
+    private long mTaskSequence;
+
+    public TrackPrefetcher(SpotifyClient spotifyClient) {
+        mSpotifyClient = spotifyClient;
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Prefetches top tracks for the given artists, typically the first rows on screen.
+     */
+    public synchronized void prefetch(List<Artist> artists) {
+        for (Artist artist : artists) {
+            schedule(artist, false);
+        }
+    }
+
+    /**
+     * Prefetches top tracks for an artist the user is pressing, ahead of other queued work.
+     */
+    public synchronized void prefetchNow(Artist artist) {
+        schedule(artist, true);
+    }
+
+    /**
+     * Drops queued and in-flight work and starts a new budget, e.g. when search results change.
+     */
+    public synchronized void reset() {
+        mGeneration++;
+        for (PrefetchTask task : mTasks) {
+            task.cancel();
+            mExecutor.remove(task);
+        }
+        mTasks.clear();
+        mRequestedArtistIds.clear();
+        mBytesFetched = 0;
+    }
+
+    public void shutdown() {
+        reset();
+        mExecutor.shutdownNow();
+    }
+
+    private void schedule(Artist artist, boolean urgent) {
+        String artistId = artist.getId();
+        if (artistId == null
+                || mRequestedArtistIds.contains(artistId)
+                || EntityStore.getInstance().hasTopTracks(artistId)
+                || mRequestedArtistIds.size() >= MAX_PREFETCHES_PER_RESULT
+                || mBytesFetched >= MAX_BYTES_PER_RESULT
+                || mExecutor.isShutdown()) {
+            return;
+        }
+        mRequestedArtistIds.add(artistId);
+        PrefetchTask task = new PrefetchTask(artistId, mGeneration, urgent, mTaskSequence++);
+        mTasks.add(task);
+        mExecutor.execute(task);
+    }
+
+    private synchronized void onTaskFinished(PrefetchTask task, List<Track> tracks) {
+        mTasks.remove(task);
+        if (task.mGeneration != mGeneration || tracks == null) {
+            return;
+        }
+        EntityStore.getInstance().putTopTracks(task.mArtistId, tracks);
+        for (Track track : tracks) {
+            mBytesFetched += EntityStore.estimateBytes(track);
+        }
+    }
+
+    /**
+     * Fetch for one artist. Urgent tasks run first, then tasks in the order they were queued.
+     */
+    private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+
+        final String mArtistId;
+        final int mGeneration;
+        final boolean mUrgent;
+        final long mSequence;
+        final Object mRequestTag = new Object();
+        volatile boolean mCancelled;
+
+        PrefetchTask(String artistId, int generation, boolean urgent, long sequence) {
+            mArtistId = artistId;
+            mGeneration = generation;
+            mUrgent = urgent;
+            mSequence = sequence;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mSpotifyClient.cancel(mRequestTag);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            List<Track> trackList = null;
+            if (!mCancelled) {
+                CancellableOkClient.setRequestTag(mRequestTag);
+                try {
+                    trackList = mSpotifyClient.getModelService()
+                            .getArtistTopTrack(mArtistId, SpotifyClient.getTopTrackOptions());
+                } catch (Exception e) {
+                    // Prefetching is best effort; TrackFragment will fetch on demand.
+                } finally {
+                    CancellableOkClient.clearRequestTag();
+                }
+            }
+            onTaskFinished(this, mCancelled ? null : trackList);
+        }
+
+        @Override
+        public int compareTo(PrefetchTask another) {
+            if (mUrgent != another.mUrgent) {
+                return mUrgent ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.mpayne.android.spotifystreamer.Artist;
+import com.mpayne.android.spotifystreamer.CancellableOkClient;
+import com.mpayne.android.spotifystreamer.EntityStore;
+import com.mpayne.android.spotifystreamer.SpotifyClient;
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import kaaes.spotify.webapi.android.models.Artists;
+
+
+/**
+ * Keeps a radio queue from running out by appending top tracks of artists related to the ones
+ * already in it. Related artists are discovered breadth first from the seed artist, each artist
+ * is looked up at most once, and top tracks are fetched a couple at a time. Everything runs in
+ * the background and results are appended on the main thread, so playback never waits on it.
+ */
+class ArtistRadio {
+
+    private static final String TAG = ArtistRadio.class.getSimpleName();
+
+    // Start extending once playback is this close to the end of the queue.
+    static final int EXTEND_WITHIN_TRACKS = 3;
+    private static final int ARTISTS_PER_EXTENSION = 3;
+    private static final int TRACKS_PER_ARTIST = 3;
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    private static final int MAX_QUEUE_SIZE = 500;
+    private static final int MAX_CACHED_RELATED_ARTISTS = 50;
+
+    // Related artists by artist id, shared by every radio in the process.
+    private static final LruCache<String, List<Artist>> sRelatedArtists = new LruCache<>(MAX_CACHED_RELATED_ARTISTS);
+
+    /**
+     * Told on the main thread when tracks were appended to the queue.
+     */
+    interface Callback {
+        void onQueueExtended(PlaybackQueue queue, int appended);
+    }
+
+    private final PlaybackQueue mQueue;
+    private final SpotifyClient mSpotifyClient;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mCrawler = Executors.newSingleThreadExecutor();
+    private final ExecutorService mFetcher = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+    private final Object mRequestTag = new Object();
+
+    // Crawl state, confined to the crawler thread after construction.
+    private final Deque<String> mUnexploredArtistIds = new ArrayDeque<>();
+    private final Deque<Artist> mCandidates = new ArrayDeque<>();
+    private final Set<String> mSeenArtistIds = new HashSet<>();
+
+    // Main thread only.
+    private boolean mExtending;
+    private volatile boolean mReleased;
+
+    ArtistRadio(PlaybackQueue queue, SpotifyClient spotifyClient, Callback callback) {
+        mQueue = queue;
+        mSpotifyClient = spotifyClient;
+        mCallback = callback;
+        mUnexploredArtistIds.add(queue.getSeedArtistId());
+        mSeenArtistIds.add(queue.getSeedArtistId());
+    }
+
+    PlaybackQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Starts extending the queue if playback at the given position is near its end
+     * and no extension is under way.
+     */
+    void onPositionChanged(int position) {
+        int size = mQueue.size();
+        if (mExtending || mReleased || size >= MAX_QUEUE_SIZE || size - 1 - position >= EXTEND_WITHIN_TRACKS) {
+            return;
+        }
+        mExtending = true;
+        try {
+            mCrawler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    List<List<Track>> tracksByArtist = new ArrayList<>();
+                    List<String> artistNames = new ArrayList<>();
+                    try {
+                        extend(tracksByArtist, artistNames);
+                    } catch (RuntimeException e) {
+                        // Radio is best effort; the queue wraps around if it can't grow.
+                        Log.w(TAG, "Unable to extend radio queue", e);
+                    }
+                    deliver(tracksByArtist, artistNames);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mExtending = false;
+        }
+    }
+
+    void release() {
+        mReleased = true;
+        mSpotifyClient.cancel(mRequestTag);
+        mCrawler.shutdownNow();
+        mFetcher.shutdownNow();
+    }
+
+    /**
+     * Collects top tracks not queued yet for the next few related artists. Runs on the crawler thread.
+     */
+    private void extend(List<List<Track>> tracksByArtist, List<String> artistNames) {
+        Set<String> queuedTrackIds = new HashSet<>();
+        for (Track track : mQueue.getTracks()) {
+            queuedTrackIds.add(track.getId());
+        }
+        // Keep going past artists whose tracks are all queued already, e.g. after a restore.
+        while (tracksByArtist.isEmpty() && !mReleased) {
+            List<Artist> artists = nextArtists(ARTISTS_PER_EXTENSION);
+            if (artists.isEmpty()) {
+                return;
+            }
+            List<Future<List<Track>>> futures = new ArrayList<>();
+            for (Artist artist : artists) {
+                futures.add(mFetcher.submit(new TopTracksFetch(artist.getId())));
+            }
+            for (int i = 0; i < artists.size(); i++) {
+                List<Track> tracks = new ArrayList<>();
+                try {
+                    for (Track track : futures.get(i).get()) {
+                        if (tracks.size() < TRACKS_PER_ARTIST && !TextUtils.isEmpty(track.getPreviewUrl())
+                                && queuedTrackIds.add(track.getId())) {
+                            tracks.add(track);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    // Skip this artist.
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!tracks.isEmpty()) {
+                    tracksByArtist.add(tracks);
+                    artistNames.add(artists.get(i).getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns up to the given number of artists not queued before, closest to the seed first.
+     */
+    private List<Artist> nextArtists(int count) {
+        List<Artist> artists = new ArrayList<>();
+        while (artists.size() < count && !mReleased) {
+            if (!mCandidates.isEmpty()) {
+                artists.add(mCandidates.poll());
+                continue;
+            }
+            String artistId = mUnexploredArtistIds.peek();
+            if (artistId == null) {
+                break;
+            }
+            List<Artist> related = getRelatedArtists(artistId);
+            if (related == null) {
+                // Network trouble; try this artist again next time.
+                break;
+            }
+            mUnexploredArtistIds.poll();
+            for (Artist artist : related) {
+                if (artist.getId() != null && mSeenArtistIds.add(artist.getId())) {
+                    mCandidates.add(artist);
+                    mUnexploredArtistIds.add(artist.getId());
+                }
+            }
+        }
+        return artists;
+    }
+
+    private List<Artist> getRelatedArtists(String artistId) {
+        List<Artist> related = sRelatedArtists.get(artistId);
+        if (related != null) {
+            return related;
+        }
+        CancellableOkClient.setRequestTag(mRequestTag);
+        try {
+            Artists artists = mSpotifyClient.getService().getRelatedArtists(artistId);
+            related = new ArrayList<>();
+            for (kaaes.spotify.webapi.android.models.Artist artist : artists.artists) {
+                related.add(new Artist(artist));
+            }
+            related = Collections.unmodifiableList(EntityStore.getInstance().putArtists(related));
+            sRelatedArtists.put(artistId, related);
+            return related;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            CancellableOkClient.clearRequestTag();
+        }
+    }
+
+    /**
+     * Appends the collected tracks on the main thread, alternating between artists.
+     */
+    private void deliver(final List<List<Track>> tracksByArtist, final List<String> artistNames) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mExtending = false;
+                if (mReleased) {
+                    return;
+                }
+                int appended = 0;
+                for (int round = 0; round < TRACKS_PER_ARTIST; round++) {
+                    for (int i = 0; i < tracksByArtist.size(); i++) {
+                        List<Track> tracks = tracksByArtist.get(i);
+                        if (round < tracks.size()) {
+                            appended += mQueue.appendNew(artistNames.get(i), Collections.singletonList(tracks.get(round)));
+                        }
+                    }
+                }
+                if (appended > 0) {
+                    mCallback.onQueueExtended(mQueue, appended);
+                }
+            }
+        });
+    }
+
+    /**
+     * Top tracks of one artist, served from EntityStore when the UI already loaded them.
+     */
+    private class TopTracksFetch implements Callable<List<Track>> {
+
+        private final String mArtistId;
+
+        TopTracksFetch(String artistId) {
+            mArtistId = artistId;
+        }
+
+        @Override
+        public List<Track> call() throws Exception {
+            List<Track> cached = EntityStore.getInstance().getTopTracks(mArtistId);
+            if (cached != null) {
+                return cached;
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            CancellableOkClient.setRequestTag(mRequestTag);
+            try {
+                List<Track> tracks = mSpotifyClient.getModelService()
+                        .getArtistTopTrack(mArtistId, SpotifyClient.getTopTrackOptions());
+                return EntityStore.getInstance().putTopTracks(mArtistId, tracks);
+            } finally {
+                CancellableOkClient.clearRequestTag();
+            }
+        }
+    }
+}
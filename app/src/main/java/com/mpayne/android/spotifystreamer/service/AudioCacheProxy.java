@@ -0,0 +1,575 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Loopback HTTP proxy that MediaPlayer streams previews through. The first play streams from
+ * the network while the preview is written to a size-bounded disk cache; later plays, including
+ * range requests made when seeking, are served from disk. A download keeps going when MediaPlayer
+ * drops its connection to seek, and ranges it has already reached are served from the partial file.
+ *
+ * Any app on the device can connect to the loopback port, so the proxy only answers URLs made by
+ * {@link #getProxyUrl(String)}, whose path is a random token chosen per instance.
+ */
+public class AudioCacheProxy {
+
+    private final String TAG = AudioCacheProxy.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "preview-audio";
+    private static final long CACHE_SIZE_BYTES = 32 * 1024 * 1024;
+    private static final String CACHE_FILE_SUFFIX = ".mp3";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String URL_PARAMETER = "url";
+    private static final String DEFAULT_CONTENT_TYPE = "audio/mpeg";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 15;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final int TOKEN_BYTES = 16;
+
+    private final File mCacheDirectory;
+    private final OkHttpClient mHttpClient;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    // Path of every proxy URL this instance hands out.
+    private final String mPath;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mPartialHitCount = new AtomicInteger();
+    private final AtomicLong mBytesServedFromCache = new AtomicLong();
+    private final AtomicLong mBytesServedFromNetwork = new AtomicLong();
+    // Previews the CDN refused outright; retrying them won't help.
+    private final Set<String> mUnavailableUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Previews being written to the cache, by URL.
+    private final ConcurrentHashMap<String, Download> mDownloads = new ConcurrentHashMap<>();
+
+    public AudioCacheProxy(File cacheDirectory) throws IOException {
+        mCacheDirectory = new File(cacheDirectory, CACHE_DIRECTORY);
+        if (!mCacheDirectory.isDirectory() && !mCacheDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mCacheDirectory);
+        }
+        deleteTempFiles();
+
+        // Audio has its own cache, so it bypasses the Spotify response cache and its counters.
+        mHttpClient = new OkHttpClient();
+        mHttpClient.setConnectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mHttpClient.setReadTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        byte[] token = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(token);
+        mPath = "/" + toHex(token);
+
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * Returns the loopback URL MediaPlayer should open for the given preview.
+     */
+    public String getProxyUrl(String url) {
+        if (url == null) {
+            return null;
+        }
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + mPath + "?"
+                + URL_PARAMETER + "=" + Uri.encode(url);
+    }
+
+    /**
+     * Returns true if the network answered a request for the preview with 403, 404 or 410.
+     */
+    public boolean isUnavailable(String url) {
+        return url != null && mUnavailableUrls.contains(url);
+    }
+
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns how many requests were served from a preview still being downloaded.
+     */
+    public int getPartialHitCount() {
+        return mPartialHitCount.get();
+    }
+
+    public long getBytesServedFromCache() {
+        return mBytesServedFromCache.get();
+    }
+
+    public long getBytesServedFromNetwork() {
+        return mBytesServedFromNetwork.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s[hits=%d,partialHits=%d,misses=%d,cacheBytes=%d,networkBytes=%d]",
+                TAG, getHitCount(), getPartialHitCount(), getMissCount(), getBytesServedFromCache(),
+                getBytesServedFromNetwork());
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // Socket closed by close().
+                return;
+            } catch (RuntimeException e) {
+                // Executor shut down by close().
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String requestLine = reader.readLine();
+            long rangeStart = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    Matcher matcher = RANGE_PATTERN.matcher(line.substring(colon + 1).trim());
+                    if (matcher.matches()) {
+                        rangeStart = Long.parseLong(matcher.group(1));
+                    }
+                }
+            }
+            Uri uri = parseRequestUri(requestLine);
+            OutputStream out = socket.getOutputStream();
+            if (uri == null || !mPath.equals(uri.getPath())) {
+                // Not a URL from getProxyUrl, so don't fetch anything on the caller's behalf.
+                writeHeaders(out, "403 Forbidden", 0, null, -1, -1);
+                return;
+            }
+            String url = uri.getQueryParameter(URL_PARAMETER);
+            if (url == null) {
+                writeHeaders(out, "400 Bad Request", 0, null, -1, -1);
+                return;
+            }
+
+            File cacheFile = new File(mCacheDirectory, cacheKey(url) + CACHE_FILE_SUFFIX);
+            Download download = mDownloads.get(url);
+            RandomAccessFile downloadFile = null;
+            if (download != null && rangeStart <= download.getWritten() && !cacheFile.isFile()) {
+                // The download can finish and be renamed into the cache before its file is opened,
+                // in which case the cache file is checked again below. Once open, it stays readable.
+                downloadFile = openIfExists(download.mFile);
+            }
+            if (downloadFile != null) {
+                mPartialHitCount.incrementAndGet();
+                serveFromDownload(out, download, downloadFile, rangeStart);
+            } else if (cacheFile.isFile()) {
+                mHitCount.incrementAndGet();
+                // Mark as recently used for eviction.
+                cacheFile.setLastModified(System.currentTimeMillis());
+                serveFromCache(out, cacheFile, rangeStart);
+            } else {
+                mMissCount.incrementAndGet();
+                serveFromNetwork(out, url, cacheFile, rangeStart);
+            }
+        } catch (IOException e) {
+            // MediaPlayer closes connections it no longer needs, e.g. when seeking or stopping.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Returns the path and query of a request line such as "GET /token?url=... HTTP/1.1".
+     */
+    private static Uri parseRequestUri(String requestLine) {
+        if (requestLine == null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+        return Uri.parse(parts[1]);
+    }
+
+    private void serveFromCache(OutputStream out, File cacheFile, long rangeStart) throws IOException {
+        long length = cacheFile.length();
+        if (rangeStart >= length) {
+            writeHeaders(out, "416 Requested Range Not Satisfiable", 0, null, -1, length);
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+        try {
+            if (rangeStart > 0) {
+                writeHeaders(out, "206 Partial Content", length - rangeStart, DEFAULT_CONTENT_TYPE, rangeStart, length);
+                file.seek(rangeStart);
+            } else {
+                writeHeaders(out, "200 OK", length, DEFAULT_CONTENT_TYPE, -1, length);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = file.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                mBytesServedFromCache.addAndGet(read);
+            }
+            out.flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Opens a file for reading, or returns null if it no longer exists.
+     */
+    private static RandomAccessFile openIfExists(File file) {
+        try {
+            return new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Serves a range of a preview that is still downloading, following the download as it grows.
+     * Closes the download's file when done.
+     */
+    private void serveFromDownload(OutputStream out, Download download, RandomAccessFile file, long rangeStart)
+            throws IOException {
+        long length = download.mLength;
+        try {
+            if (rangeStart > 0) {
+                writeHeaders(out, "206 Partial Content", length - rangeStart, DEFAULT_CONTENT_TYPE, rangeStart, length);
+                file.seek(rangeStart);
+            } else {
+                writeHeaders(out, "200 OK", length, DEFAULT_CONTENT_TYPE, -1, length);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = rangeStart;
+            while (position < length) {
+                long available = download.awaitBytesAfter(position);
+                if (available <= 0) {
+                    // The download failed; MediaPlayer will ask again.
+                    return;
+                }
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, available));
+                if (read == -1) {
+                    return;
+                }
+                out.write(buffer, 0, read);
+                position += read;
+                mBytesServedFromCache.addAndGet(read);
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Streams the preview from the network. Whole-file requests are also written to the cache;
+     * a range into a preview that is not cached yet is passed through uncached.
+     */
+    private void serveFromNetwork(OutputStream out, String url, File cacheFile, long rangeStart) throws IOException {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (rangeStart > 0) {
+            builder.header("Range", "bytes=" + rangeStart + "-");
+        }
+        Response response = mHttpClient.newCall(builder.build()).execute();
+        InputStream in = response.body().byteStream();
+        File tempFile = null;
+        OutputStream cacheOut = null;
+        Download download = null;
+        try {
+            if (!response.isSuccessful()) {
+                int code = response.code();
+                if (code == 403 || code == 404 || code == 410) {
+                    mUnavailableUrls.add(url);
+                }
+                writeHeaders(out, response.code() + " " + response.message(), 0, null, -1, -1);
+                return;
+            }
+            long length = response.body().contentLength();
+            String contentType = response.header("Content-Type", DEFAULT_CONTENT_TYPE);
+            if (response.code() == 206) {
+                long total = length < 0 ? -1 : rangeStart + length;
+                if (length < 0) {
+                    // Chunked, so the range it covers is only known from the upstream Content-Range.
+                    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(response.header("Content-Range", ""));
+                    if (matcher.matches() && Long.parseLong(matcher.group(1)) == rangeStart) {
+                        length = Long.parseLong(matcher.group(2)) - rangeStart + 1;
+                        total = "*".equals(matcher.group(3)) ? -1 : Long.parseLong(matcher.group(3));
+                    }
+                }
+                writeHeaders(out, "206 Partial Content", length, contentType, rangeStart, total);
+            } else {
+                writeHeaders(out, "200 OK", length, contentType, -1, length);
+                tempFile = File.createTempFile(cacheFile.getName(), TEMP_FILE_SUFFIX, mCacheDirectory);
+                cacheOut = new FileOutputStream(tempFile);
+                if (length > 0) {
+                    download = new Download(tempFile, length);
+                    if (mDownloads.putIfAbsent(url, download) != null) {
+                        // Another request is already downloading this preview.
+                        download = null;
+                    }
+                }
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            boolean clientConnected = true;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (cacheOut != null) {
+                    cacheOut.write(buffer, 0, read);
+                }
+                written += read;
+                if (download != null) {
+                    download.setWritten(written);
+                }
+                if (clientConnected) {
+                    try {
+                        out.write(buffer, 0, read);
+                        mBytesServedFromNetwork.addAndGet(read);
+                    } catch (IOException e) {
+                        if (download == null) {
+                            throw e;
+                        }
+                        // MediaPlayer dropped the connection, e.g. to seek; finish the download
+                        // so the range it asks for next can be served from disk.
+                        clientConnected = false;
+                    }
+                }
+            }
+            if (clientConnected) {
+                out.flush();
+            }
+
+            if (cacheOut != null) {
+                cacheOut.close();
+                cacheOut = null;
+                if ((length < 0 || written == length) && tempFile.renameTo(cacheFile)) {
+                    tempFile = null;
+                    trimCache();
+                }
+            }
+        } finally {
+            in.close();
+            if (download != null) {
+                mDownloads.remove(url, download);
+                download.finish();
+            }
+            if (cacheOut != null) {
+                cacheOut.close();
+            }
+            if (tempFile != null) {
+                // Incomplete or superseded download.
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, String status, long contentLength, String contentType,
+                                     long rangeStart, long totalLength) throws IOException {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) {
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (rangeStart >= 0 && contentLength >= 0) {
+            headers.append("Content-Range: bytes ").append(rangeStart).append('-')
+                    .append(rangeStart + contentLength - 1).append('/')
+                    .append(totalLength < 0 ? "*" : String.valueOf(totalLength)).append("\r\n");
+        } else if (totalLength >= 0 && contentLength == 0) {
+            headers.append("Content-Range: bytes */").append(totalLength).append("\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * Deletes least recently played previews until the cache fits its size bound.
+     */
+    private synchronized void trimCache() {
+        File[] files = mCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= CACHE_SIZE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (size <= CACHE_SIZE_BYTES) {
+                break;
+            }
+            if (file.getName().endsWith(CACHE_FILE_SUFFIX)) {
+                long length = file.length();
+                if (file.delete()) {
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    private void deleteTempFiles() {
+        File[] files = mCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private String cacheKey(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return toHex(digest.digest(url.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "MD5 unavailable", e);
+            return String.valueOf(url.hashCode());
+        } catch (IOException e) {
+            return String.valueOf(url.hashCode());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format(Locale.US, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Progress of a preview being written to a temporary cache file.
+     */
+    private static class Download {
+        final File mFile;
+        final long mLength;
+        private long mWritten;
+        private boolean mFinished;
+
+        Download(File file, long length) {
+            mFile = file;
+            mLength = length;
+        }
+
+        synchronized long getWritten() {
+            return mWritten;
+        }
+
+        synchronized void setWritten(long written) {
+            mWritten = written;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            mFinished = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until bytes past the given position are written and returns how many there are,
+         * or 0 if the download ended first.
+         */
+        synchronized long awaitBytesAfter(long position) throws InterruptedException {
+            while (mWritten <= position && !mFinished) {
+                wait();
+            }
+            return Math.max(0, mWritten - position);
+        }
+    }
+}
@@ -4,24 +4,36 @@ import android.app.Service;
 import android.content.Intent;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.mpayne.android.spotifystreamer.EntityStore;
+import com.mpayne.android.spotifystreamer.SpotifyClient;
 import com.mpayne.android.spotifystreamer.Track;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.List;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class MusicPlayerService extends Service implements
         MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
-        MediaPlayer.OnCompletionListener {
+        MediaPlayer.OnCompletionListener, MediaPlayer.OnInfoListener,
+        MediaPlayer.OnSeekCompleteListener, ArtistRadio.Callback {
 
     private final String TAG = MusicPlayerService.class.getSimpleName();
 
     public static final String ACTION_TRACK_DETAIL = "action_track_detail";
-    public static final String ACTION_TRACK_PLAY_STATUS = "action_track_play_status";
 
     public static final String ACTION_PLAY_TRACK = "action_play_track";
     public static final String ACTION_RESUME_TRACK = "action_resume_track";
@@ -29,94 +41,269 @@ public class MusicPlayerService extends Service implements
     public static final String ACTION_PLAY_PREVIOUS_TRACK = "action_play_previous_track";
     public static final String ACTION_PAUSE_TRACK = "action_pause_track";
     public static final String ACTION_CHANGE_TRACK_PROGRESS = "action_change_track_progress";
-    public static final String ACTION_TRACK_PROGRESS = "action_track_progress";
-    public static final String ACTION_TRACK_DURATION = "action_track_duration";
 
-    public static final String EXTRA_ARTIST_NAME = "extra_artist_name";
-    public static final String EXTRA_TRACK_LIST = "extra_track_list";
-    public static final String EXTRA_TRACK = "extra_track";
-    public static final String EXTRA_TRACK_IS_PLAYING = "extra_track_is_playing";
+    public static final String EXTRA_QUEUE_ID = "extra_queue_id";
     public static final String EXTRA_TRACK_POSITION = "extra_track_position";
     public static final String EXTRA_TRACK_PROGRESS = "extra_track_progress";
-    public static final String EXTRA_TRACK_DURATION = "extra_track_duration";
+    // SystemClock.elapsedRealtime at which the user asked for the action, for latency metrics.
+    public static final String EXTRA_REQUESTED_AT = "extra_requested_at";
+
+    // Position drift from the extrapolated snapshot that is worth publishing.
+    private static final int POSITION_TOLERANCE_MILLIS = 250;
+
+    // Prepares that time out or fail transiently are retried this many times, backing off exponentially.
+    static final int MAX_PREPARE_RETRIES = 2;
+    static final int RETRY_BACKOFF_MILLIS = 500;
+    private static final int DEFAULT_PREPARE_TIMEOUT_MILLIS = 10000;
+
+    // MediaPlayer error extras only defined from API 17.
+    private static final int MEDIA_ERROR_MALFORMED = -1007;
+    private static final int MEDIA_ERROR_UNSUPPORTED = -1010;
+
+    /**
+     * Receives playback snapshots on the main thread when playback changes.
+     */
+    public interface PlaybackStateListener {
+        void onPlaybackStateChanged(PlaybackState state);
+    }
 
-    private String mArtistName;
+    /**
+     * Binder handed to clients in this process.
+     */
+    public class LocalBinder extends Binder {
+        public MusicPlayerService getService() {
+            return MusicPlayerService.this;
+        }
+    }
 
-    private List<Track> mTrackList;
-    private int mTrackPosition;
-    private Track mTrack;
-    private int mTrackDuration = -1;
-    private int mTrackProgress = -1;
+    private final IBinder mBinder = new LocalBinder();
+    // Listeners and the interval at which each wants its snapshot re-synced with the player, 0 for never.
+    private final Map<PlaybackStateListener, Integer> mListeners = new LinkedHashMap<>();
+    private PlaybackState mPlaybackState = PlaybackState.EMPTY;
 
+    // Re-syncs the snapshot only while a listener asks for it and a track is playing.
     private Handler mHandler;
+    private int mTickCount;
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            mTickCount++;
+            publishPlaybackState();
+        }
+    };
 
-    Intent mTrackDetailIntent = new Intent(ACTION_TRACK_DETAIL);
-    Intent mTrackPlayStatusIntent = new Intent(ACTION_TRACK_PLAY_STATUS);
-    Intent mTrackProgressIntent = new Intent(ACTION_TRACK_PROGRESS);
-    Intent mTrackDurationIntent = new Intent(ACTION_TRACK_DURATION);
+    private PlaybackQueue mQueue;
+    private int mTrackPosition;
+    private Track mTrack;
 
     private MediaPlayer mMediaPlayer;
+    // Position and duration may only be read once the current player is prepared.
+    private boolean mMediaPlayerPrepared;
+    private volatile long mPrepareRequestedNanos;
+
+    // Seek the current player is applying and the latest one asked for meanwhile, -1 for none.
+    private int mSeekTarget = -1;
+    private int mPendingSeek = -1;
+
+    // Gives up on a prepare that hangs, e.g. on a stalled connection.
+    private int mPrepareTimeoutMillis = DEFAULT_PREPARE_TIMEOUT_MILLIS;
+    private int mRetryCount;
+    // Tracks given up on in a row; playback stops once the whole queue has failed.
+    private int mFailedTrackCount;
+    private final Runnable mPrepareTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Timed out preparing " + mTrack.getId());
+            onCurrentTrackFailed(false);
+        }
+    };
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            prepareCurrentTrack();
+        }
+    };
+
+    // Player buffering the track after the current one so it can take over without a gap.
+    private MediaPlayer mNextMediaPlayer;
+    private int mNextTrackPosition = -1;
+    private Track mNextTrack;
+    private boolean mNextMediaPlayerPrepared;
+
+    // Streams previews through a disk cache so replays don't download them again.
+    private AudioCacheProxy mAudioCacheProxy;
+
+    private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+
+    // Extends radio queues with tracks by related artists.
+    private ArtistRadio mRadio;
+
+    // Writes session snapshots off the main thread, one at a time and in order.
+    private ExecutorService mSessionWriter;
+    private File mSessionFile;
+    // Duration of a restored track until it is prepared again.
+    private int mRestoredDuration = -1;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mHandler = new Handler();
+        mSessionWriter = Executors.newSingleThreadExecutor();
+        mSessionFile = new File(getFilesDir(), PlaybackSession.FILE_NAME);
+        try {
+            mAudioCacheProxy = new AudioCacheProxy(getCacheDir());
+        } catch (IOException e) {
+            // Play straight from the network instead.
+            Log.e(TAG, "Unable to start audio cache proxy", e);
+        }
     }
 
     @Override
     public void onDestroy() {
-        mHandler.removeCallbacks(sendBroadcasts);
+        mListeners.clear();
+        mHandler.removeCallbacks(mTick);
+        cancelPendingPrepare();
+        saveSession();
+        // Lets the last snapshot finish writing.
+        mSessionWriter.shutdown();
+        if(mRadio != null) {
+            mRadio.release();
+        }
+        releaseNextMediaPlayer();
+        releaseMediaPlayer();
+        if(mAudioCacheProxy != null) {
+            Log.d(TAG, mAudioCacheProxy.toString());
+            mAudioCacheProxy.close();
+        }
         super.onDestroy();
     }
 
-    private Runnable sendBroadcasts = new Runnable() {
-        public void run() {
-            broadcastTrackProgress();
-            mHandler.postDelayed(this, 200);
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    /**
+     * Registers a listener for playback changes only.
+     */
+    public void addPlaybackStateListener(PlaybackStateListener listener) {
+        addPlaybackStateListener(listener, 0);
+    }
+
+    /**
+     * Registers a listener and immediately delivers a snapshot synced with the player to it.
+     *
+     * @param syncIntervalMillis how often the snapshot should be re-synced while playing, 0 for never
+     */
+    public void addPlaybackStateListener(PlaybackStateListener listener, int syncIntervalMillis) {
+        mListeners.put(listener, syncIntervalMillis);
+        // Catch up on anything that happened while nobody was listening.
+        PlaybackState previousState = mPlaybackState;
+        publishPlaybackState();
+        if(mPlaybackState == previousState) {
+            listener.onPlaybackStateChanged(mPlaybackState);
         }
-    };
+    }
+
+    public void removePlaybackStateListener(PlaybackStateListener listener) {
+        mListeners.remove(listener);
+        updateTicker();
+    }
+
+    /**
+     * Returns the System.nanoTime at which the current player last started preparing.
+     */
+    public long getLastPrepareRequestedNanos() {
+        return mPrepareRequestedNanos;
+    }
 
+    /**
+     * Returns how many times the re-sync ticker has run.
+     */
+    public int getTickCount() {
+        return mTickCount;
+    }
+
+    public PlaybackState getPlaybackState() {
+        return mPlaybackState;
+    }
+
+    public PlaybackMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Shortens the prepare timeout so tests can inject stalls.
+     */
+    void setPrepareTimeoutMillis(int prepareTimeoutMillis) {
+        mPrepareTimeoutMillis = prepareTimeoutMillis;
+    }
+
+    /**
+     * Prints playback metrics, e.g. with
+     * adb shell dumpsys activity service com.mpayne.android.spotifystreamer/.service.MusicPlayerService
+     */
     @Override
-    public IBinder onBind(Intent intent) {
-        return null;
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        if(mAudioCacheProxy != null) {
+            writer.println(mAudioCacheProxy);
+        }
     }
 
     public int onStartCommand(Intent intent, int flags, int startId) {
         switch (intent.getAction()) {
             case ACTION_TRACK_DETAIL:
-                broadcastTrackDetail();
-                broadcastTrackPlayStatus();
+                if(mQueue == null) {
+                    // Started again after the process died; pick up where the last session left off.
+                    restoreSession();
+                }
+                // Re-sync the snapshot with the player, e.g. after a stall.
+                publishPlaybackState();
                 break;
             case ACTION_PLAY_TRACK:
-                mArtistName = intent.getStringExtra(EXTRA_ARTIST_NAME);
-                mTrackList = intent.getParcelableArrayListExtra(EXTRA_TRACK_LIST);
-                mTrackPosition = intent.getIntExtra(EXTRA_TRACK_POSITION, -1);
-                mTrack = mTrackList.get(mTrackPosition);
+                PlaybackQueue queue = PlaybackQueue.get(intent.getLongExtra(EXTRA_QUEUE_ID, -1));
+                int position = intent.getIntExtra(EXTRA_TRACK_POSITION, -1);
+                if(queue == null || position < 0 || position >= queue.size()) {
+                    Log.w(TAG, "Ignoring play request for missing queue or track");
+                    break;
+                }
+                mMetrics.begin(PlaybackMetrics.ACTION_PLAY, intent.getLongExtra(EXTRA_REQUESTED_AT, 0));
+                setQueue(queue);
+                mTrackPosition = position;
+                mTrack = mQueue.get(mTrackPosition);
+                mFailedTrackCount = 0;
                 playTrack();
                 break;
             case ACTION_RESUME_TRACK:
-                if(!mMediaPlayer.isPlaying()) {
+                if(mMediaPlayerPrepared && !mMediaPlayer.isPlaying()) {
                     mMediaPlayer.start();
-                    broadcastTrackPlayStatus();
-                    mHandler.post(sendBroadcasts);
+                    publishPlaybackState();
+                } else if(mMediaPlayer == null && mTrack != null && mPendingSeek >= 0) {
+                    // A restored track is only loaded once the user plays it.
+                    int progress = mPendingSeek;
+                    mFailedTrackCount = 0;
+                    playTrack();
+                    seekTo(progress);
                 }
                 break;
             case ACTION_PAUSE_TRACK:
-                if(mMediaPlayer.isPlaying()) {
+                if(mMediaPlayerPrepared && mMediaPlayer.isPlaying()) {
                     mMediaPlayer.pause();
-                    broadcastTrackPlayStatus();
-                    mHandler.removeCallbacks(sendBroadcasts);
+                    publishPlaybackState();
+                    saveSession();
                 }
                 break;
             case ACTION_PLAY_NEXT_TRACK:
+                mMetrics.begin(PlaybackMetrics.ACTION_NEXT, intent.getLongExtra(EXTRA_REQUESTED_AT, 0));
                 playNextTrack();
                 break;
             case ACTION_PLAY_PREVIOUS_TRACK:
+                mMetrics.begin(PlaybackMetrics.ACTION_PREVIOUS, intent.getLongExtra(EXTRA_REQUESTED_AT, 0));
                 playPreviousTrack();
                 break;
             case ACTION_CHANGE_TRACK_PROGRESS:
-                mMediaPlayer.seekTo(intent.getIntExtra(EXTRA_TRACK_PROGRESS, -1));
-                broadcastTrackProgress();
+                seekTo(intent.getIntExtra(EXTRA_TRACK_PROGRESS, -1));
                 break;
         }
 
@@ -125,103 +312,528 @@ public class MusicPlayerService extends Service implements
 
     @Override
     public void onCompletion(MediaPlayer mp) {
-        // No need to broadcast progress while track isn't playing
-        mHandler.removeCallbacks(sendBroadcasts);
-        mTrackDuration = -1;
-        mTrackProgress = -1;
+        if(mp != mMediaPlayer) {
+            // Only the current player's completion advances the queue.
+            return;
+        }
+        mMetrics.begin(PlaybackMetrics.ACTION_AUTO_ADVANCE, 0);
         playNextTrack();
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
-        return false;
+        mMetrics.recordError(what, extra, mp == mNextMediaPlayer);
+        if(mp == mNextMediaPlayer) {
+            // The current track keeps playing; the next one is skipped or prepared again when it is reached.
+            if(isPermanentError(mNextTrack, what, extra)) {
+                mQueue.markUnplayable(mNextTrack);
+            }
+            releaseNextMediaPlayer();
+        } else if(mp == mMediaPlayer) {
+            onCurrentTrackFailed(isPermanentError(mTrack, what, extra));
+        }
+        // Handled, so MediaPlayer doesn't also report completion.
+        return true;
+    }
+
+    /**
+     * Returns true if the track failed in a way retrying won't fix.
+     */
+    private boolean isPermanentError(Track track, int what, int extra) {
+        if(what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
+            return false;
+        }
+        if(extra == MEDIA_ERROR_MALFORMED || extra == MEDIA_ERROR_UNSUPPORTED) {
+            return true;
+        }
+        // MediaPlayer reports a missing preview as a plain I/O error; the proxy saw the actual response.
+        return mAudioCacheProxy != null && mAudioCacheProxy.isUnavailable(track.getPreviewUrl());
+    }
+
+    /**
+     * Retries the current track after a transient failure, or skips to the next playable track
+     * once retries are used up or the track can never play.
+     */
+    private void onCurrentTrackFailed(boolean permanent) {
+        cancelPendingPrepare();
+        releaseMediaPlayer();
+        if(!permanent && mRetryCount < MAX_PREPARE_RETRIES) {
+            int delay = RETRY_BACKOFF_MILLIS << mRetryCount;
+            mRetryCount++;
+            mMetrics.recordRetry();
+            Log.w(TAG, "Retrying " + mTrack.getId() + " in " + delay + "ms");
+            publishPlaybackState();
+            mHandler.postDelayed(mRetry, delay);
+            return;
+        }
+        if(permanent) {
+            mQueue.markUnplayable(mTrack);
+        }
+        mMetrics.recordSkip();
+        mFailedTrackCount++;
+        if(mFailedTrackCount >= mQueue.size()) {
+            Log.w(TAG, "No playable tracks left in queue");
+            stopPlayback();
+            return;
+        }
+        playNextTrack();
     }
 
     @Override
     public void onPrepared(MediaPlayer mp) {
-        if(mp != null) {
-            // Start playing the track, broadcast progress and track details
-            mp.start();
-            mTrackDuration = mp.getDuration();
-            mHandler.post(sendBroadcasts);
-            broadcastTrackPlayStatus();
-            broadcastTrackDetail();
+        if(mp == null) {
+            return;
+        }
+        if(mp == mNextMediaPlayer) {
+            mNextMediaPlayerPrepared = true;
+            chainNextMediaPlayer();
+            return;
+        }
+        // Start playing the track and publish it
+        cancelPendingPrepare();
+        mRetryCount = 0;
+        mFailedTrackCount = 0;
+        mMediaPlayerPrepared = true;
+        if(mPendingSeek >= 0) {
+            // The user moved the seek bar while the track was buffering.
+            startSeek(mPendingSeek);
+        }
+        mp.start();
+        mMetrics.finish();
+        onTrackStarted();
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if(mp != mMediaPlayer) {
+            return false;
+        }
+        if(what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+            mMetrics.recordStallStart();
+        } else if(what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+            mMetrics.recordStallEnd();
+        }
+        return false;
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        if(mp != mMediaPlayer || mSeekTarget < 0) {
+            return;
+        }
+        if(mPendingSeek >= 0) {
+            startSeek(mPendingSeek);
+            return;
+        }
+        mSeekTarget = -1;
+        publishPlaybackState();
+        saveSession();
+    }
+
+    /**
+     * Seeks the current track. While a seek is in flight only the latest target is kept and
+     * applied once it completes, so scrubbing doesn't queue up seeks on the player.
+     */
+    private void seekTo(int position) {
+        if(mTrack == null || position < 0) {
+            return;
+        }
+        if(!mMediaPlayerPrepared || mSeekTarget >= 0) {
+            mPendingSeek = position;
+        } else {
+            startSeek(position);
+        }
+        publishPlaybackState();
+    }
+
+    private void startSeek(int position) {
+        mSeekTarget = position;
+        mPendingSeek = -1;
+        mMediaPlayer.seekTo(position);
+    }
+
+    private void clearSeek() {
+        mSeekTarget = -1;
+        mPendingSeek = -1;
+    }
+
+    /**
+     * Publishes the track that just started and begins buffering the one after it.
+     */
+    private void onTrackStarted() {
+        publishPlaybackState();
+        saveSession();
+        if(mRadio != null) {
+            mRadio.onPositionChanged(mTrackPosition);
+        }
+        prepareNextMediaPlayer();
+    }
+
+    /**
+     * Snapshots the queue, track and progress to disk in the background.
+     */
+    private void saveSession() {
+        if(mQueue == null || mTrack == null || mSessionWriter.isShutdown()) {
+            return;
+        }
+        final PlaybackSession session = new PlaybackSession(mQueue.getSeedArtistId(), mQueue.getArtistName(),
+                mQueue.getTracks(), mQueue.getArtistNames(), mTrackPosition,
+                mPlaybackState.getCurrentPosition(), mPlaybackState.getDuration());
+        mSessionWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.write(mSessionFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to save playback session", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the last saved session paused at its saved progress, without touching the network.
+     */
+    private void restoreSession() {
+        long start = SystemClock.elapsedRealtime();
+        PlaybackSession session = PlaybackSession.read(mSessionFile);
+        if(session == null) {
+            return;
         }
+        // Share track objects with any screen that loaded the same artist.
+        setQueue(PlaybackQueue.restore(session.getSeedArtistId(), session.getArtistName(),
+                EntityStore.getInstance().putTracks(session.getTracks()), session.getArtistNames()));
+        mTrackPosition = session.getTrackPosition();
+        mTrack = mQueue.get(mTrackPosition);
+        mPendingSeek = session.getProgress();
+        mRestoredDuration = session.getDuration();
+        Log.d(TAG, "Restored " + mQueue.size() + " tracks in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Switches to another queue, starting its radio if it has a seed artist.
+     */
+    private void setQueue(PlaybackQueue queue) {
+        if(mRadio != null && mRadio.getQueue() != queue) {
+            mRadio.release();
+            mRadio = null;
+        }
+        mQueue = queue;
+        if(mRadio == null && queue.getSeedArtistId() != null) {
+            mRadio = new ArtistRadio(queue, SpotifyClient.getInstance(this), this);
+        }
+    }
+
+    @Override
+    public void onQueueExtended(PlaybackQueue queue, int appended) {
+        if(queue != mQueue) {
+            return;
+        }
+        Log.d(TAG, "Radio appended " + appended + " tracks");
+        // The track after the last one is no longer the first one.
+        if(mMediaPlayerPrepared) {
+            prepareNextMediaPlayer();
+        }
+        saveSession();
+    }
+
+    /**
+     * Returns the artist of the current track.
+     */
+    private String getTrackArtistName() {
+        if(mQueue == null) {
+            return null;
+        }
+        // The queue may have been edited since the track was chosen.
+        if(mTrackPosition < mQueue.size() && mQueue.get(mTrackPosition) == mTrack) {
+            return mQueue.getArtistName(mTrackPosition);
+        }
+        return mQueue.getArtistName();
+    }
+
+    private String getDataSource(Track track) {
+        if(mAudioCacheProxy == null) {
+            return track.getPreviewUrl();
+        }
+        return mAudioCacheProxy.getProxyUrl(track.getPreviewUrl());
+    }
+
+    public AudioCacheProxy getAudioCacheProxy() {
+        return mAudioCacheProxy;
+    }
+
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnInfoListener(this);
+        mediaPlayer.setOnSeekCompleteListener(this);
+        return mediaPlayer;
     }
 
     private void playTrack() {
+        mRetryCount = 0;
+        mRestoredDuration = -1;
+        clearSeek();
+        // A track chosen out of order makes the buffered next track stale.
+        releaseNextMediaPlayer();
+        mMetrics.recordStallEnd();
+        prepareCurrentTrack();
+    }
+
+    /**
+     * Opens the current track on the current player and waits, bounded by the prepare timeout,
+     * for it to be prepared.
+     */
+    private void prepareCurrentTrack() {
+        cancelPendingPrepare();
         if(mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
+            mMediaPlayer = createMediaPlayer();
         } else {
             mMediaPlayer.stop();
             mMediaPlayer.reset();
         }
+        mMediaPlayerPrepared = false;
+        if(!mQueue.isPlayable(mTrack)) {
+            // Missing or known dead preview; don't go to the network for it.
+            onCurrentTrackFailed(true);
+            return;
+        }
+        publishPlaybackState();
         try {
-            mMediaPlayer.setDataSource(mTrack.getPreviewUrl());
+            mMediaPlayer.setDataSource(getDataSource(mTrack));
+            mMetrics.mark(PlaybackMetrics.PHASE_DATA_SOURCE_SET);
+            mPrepareRequestedNanos = System.nanoTime();
             mMediaPlayer.prepareAsync();
+            mMetrics.mark(PlaybackMetrics.PHASE_PREPARE_STARTED);
+            mHandler.postDelayed(mPrepareTimeout, mPrepareTimeoutMillis);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(TAG, "Unable to open " + mTrack.getPreviewUrl(), e);
+            onCurrentTrackFailed(true);
+        }
+    }
+
+    private void cancelPendingPrepare() {
+        mHandler.removeCallbacks(mPrepareTimeout);
+        mHandler.removeCallbacks(mRetry);
+    }
+
+    private void releaseMediaPlayer() {
+        if(mMediaPlayer != null) {
+            mMediaPlayer.release();
+            mMediaPlayer = null;
         }
+        mMediaPlayerPrepared = false;
+        mSeekTarget = -1;
+    }
+
+    /**
+     * Stops on the current track, e.g. when nothing in the queue can be played.
+     */
+    private void stopPlayback() {
+        mMetrics.discard();
+        cancelPendingPrepare();
+        releaseNextMediaPlayer();
+        releaseMediaPlayer();
+        publishPlaybackState();
     }
 
     private void playNextTrack() {
-        if(mTrackPosition + 1 < mTrackList.size()) {
-            mTrackPosition++;
-            mTrack = mTrackList.get(mTrackPosition);
-        } else {
-            mTrackPosition = 0;
-            mTrack = mTrackList.get(mTrackPosition);
+        if(mQueue == null || mQueue.size() == 0) {
+            mMetrics.discard();
+            return;
         }
+        int nextTrackPosition = getNextTrackPosition();
+        if(nextTrackPosition < 0) {
+            stopPlayback();
+            return;
+        }
+        if(isNextMediaPlayerFor(nextTrackPosition)) {
+            handOffToNextMediaPlayer();
+            return;
+        }
+        mTrackPosition = nextTrackPosition;
+        mTrack = mQueue.get(mTrackPosition);
         playTrack();
     }
 
-    private void playPreviousTrack() {
-        if(mTrackList.size() == 1) {
-            mTrackPosition = 0;
-            mTrack = mTrackList.get(mTrackPosition);
-        } else if(mTrackPosition == 0) {
-            mTrackPosition = mTrackList.size() - 1;
-            mTrack = mTrackList.get(mTrackPosition);
-        } else {
-            mTrackPosition--;
-            mTrack = mTrackList.get(mTrackPosition);
+    /**
+     * Returns true if the next player holds the track now at the given queue position,
+     * which may have changed if the queue was edited.
+     */
+    private boolean isNextMediaPlayerFor(int position) {
+        return mNextMediaPlayer != null && mNextTrackPosition == position
+                && mQueue.get(position) == mNextTrack;
+    }
+
+    /**
+     * Returns the position of the next playable track, wrapping around the queue, or -1 if there is none.
+     */
+    private int getNextTrackPosition() {
+        int size = mQueue.size();
+        for(int i = 1; i <= size; i++) {
+            int position = (mTrackPosition + i) % size;
+            if(mQueue.isPlayable(mQueue.get(position))) {
+                return position;
+            }
         }
-        playTrack();
+        return -1;
     }
 
-    private void broadcastTrackProgress() {
-        mTrackProgress = mMediaPlayer.getCurrentPosition();
-        mTrackProgressIntent.putExtra(EXTRA_TRACK_PROGRESS, mTrackProgress);
-        sendLocalBroadcast(mTrackProgressIntent);
+    /**
+     * Starts buffering the next track in the queue on a second player.
+     */
+    private void prepareNextMediaPlayer() {
+        if(mQueue.size() == 0) {
+            return;
+        }
+        int nextTrackPosition = getNextTrackPosition();
+        if(nextTrackPosition < 0 || isNextMediaPlayerFor(nextTrackPosition)) {
+            return;
+        }
+        releaseNextMediaPlayer();
+        mNextMediaPlayer = createMediaPlayer();
+        mNextTrackPosition = nextTrackPosition;
+        mNextTrack = mQueue.get(nextTrackPosition);
+        try {
+            mNextMediaPlayer.setDataSource(getDataSource(mNextTrack));
+            mNextMediaPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to pre-buffer next track", e);
+            releaseNextMediaPlayer();
+        }
     }
 
-    private void broadcastTrackPlayStatus() {
-        mTrackPlayStatusIntent.putExtra(EXTRA_TRACK_IS_PLAYING, mMediaPlayer.isPlaying());
-        sendLocalBroadcast(mTrackPlayStatusIntent);
+    /**
+     * Lets the platform start the prepared next player the moment the current one completes.
+     */
+    private void chainNextMediaPlayer() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && mMediaPlayer != null
+                && mNextMediaPlayer != null && mNextMediaPlayerPrepared) {
+            mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+        }
     }
 
-    private void broadcastTrackDetail() {
-        mTrackDetailIntent.putExtra(EXTRA_ARTIST_NAME, mArtistName);
-        mTrackDetailIntent.putExtra(EXTRA_TRACK, mTrack);
-        sendLocalBroadcast(mTrackDetailIntent);
-        // Need duration and progress if paused and then scrubbed and/or orientation changed.
-        // Keeping logic here instead of trying to save data in fragment.
-        if(mTrackDuration > -1) {
-            mTrackDurationIntent.putExtra(EXTRA_TRACK_DURATION, mTrackDuration);
-            sendLocalBroadcast(mTrackDurationIntent);
+    /**
+     * Makes the next player current, starting it if prepared or as soon as it is.
+     * On Jelly Bean and later a chained player has already started by the time the current one completes.
+     */
+    private void handOffToNextMediaPlayer() {
+        mMetrics.recordStallEnd();
+        mMetrics.markPrebuffered();
+        MediaPlayer previousMediaPlayer = mMediaPlayer;
+        boolean prepared = mNextMediaPlayerPrepared;
+
+        mMediaPlayer = mNextMediaPlayer;
+        mTrackPosition = mNextTrackPosition;
+        mTrack = mNextTrack;
+        mNextMediaPlayer = null;
+        mNextTrackPosition = -1;
+        mNextTrack = null;
+        mNextMediaPlayerPrepared = false;
+        mMediaPlayerPrepared = prepared;
+        mRetryCount = 0;
+        clearSeek();
+        cancelPendingPrepare();
+
+        if(previousMediaPlayer != null) {
+            previousMediaPlayer.release();
         }
-        if(mTrackProgress > -1) {
-            broadcastTrackProgress();
+        if(!prepared) {
+            // Show the new track as buffering until onPrepared starts it.
+            publishPlaybackState();
+            mHandler.postDelayed(mPrepareTimeout, mPrepareTimeoutMillis);
+        } else {
+            if(!mMediaPlayer.isPlaying()) {
+                mMediaPlayer.start();
+            }
+            mMetrics.finish();
+            onTrackStarted();
         }
+    }
 
+    private void releaseNextMediaPlayer() {
+        if(mNextMediaPlayer != null) {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && mMediaPlayer != null) {
+                mMediaPlayer.setNextMediaPlayer(null);
+            }
+            mNextMediaPlayer.release();
+            mNextMediaPlayer = null;
+        }
+        mNextTrackPosition = -1;
+        mNextTrack = null;
+        mNextMediaPlayerPrepared = false;
     }
 
-    private void sendLocalBroadcast(Intent intent){
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    private void playPreviousTrack() {
+        if(mQueue == null || mQueue.size() == 0) {
+            mMetrics.discard();
+            return;
+        }
+        // Step back to the previous playable track, wrapping around the queue.
+        int size = mQueue.size();
+        for(int i = 1; i <= size; i++) {
+            int position = (mTrackPosition - i + size) % size;
+            if(mQueue.isPlayable(mQueue.get(position))) {
+                mTrackPosition = position;
+                mTrack = mQueue.get(mTrackPosition);
+                playTrack();
+                return;
+            }
+        }
+        stopPlayback();
+    }
+
+    /**
+     * Publishes a new snapshot if playback changed beyond what listeners can extrapolate.
+     */
+    private void publishPlaybackState() {
+        boolean playing = false;
+        int duration = mRestoredDuration;
+        int position = Math.max(mPendingSeek, 0);
+        if(mMediaPlayerPrepared) {
+            playing = mMediaPlayer.isPlaying();
+            duration = mMediaPlayer.getDuration();
+            // The player reports the old position until a seek completes.
+            if(mPendingSeek >= 0) {
+                position = mPendingSeek;
+            } else if(mSeekTarget >= 0) {
+                position = mSeekTarget;
+            } else {
+                position = mMediaPlayer.getCurrentPosition();
+            }
+        }
+        PlaybackState state = new PlaybackState(getTrackArtistName(), mTrack, playing, duration, position,
+                SystemClock.elapsedRealtime());
+        if(!mPlaybackState.isEquivalentTo(state, POSITION_TOLERANCE_MILLIS)) {
+            mPlaybackState = state;
+            for(PlaybackStateListener listener : new ArrayList<>(mListeners.keySet())) {
+                listener.onPlaybackStateChanged(state);
+            }
+        }
+        updateTicker();
+    }
+
+    /**
+     * Schedules the next re-sync at the shortest interval any listener asked for,
+     * or stops the ticker if nobody asked or nothing is playing.
+     */
+    private void updateTicker() {
+        mHandler.removeCallbacks(mTick);
+        if(!mPlaybackState.isPlaying()) {
+            return;
+        }
+        int interval = 0;
+        for(int syncIntervalMillis : mListeners.values()) {
+            if(syncIntervalMillis > 0 && (interval == 0 || syncIntervalMillis < interval)) {
+                interval = syncIntervalMillis;
+            }
+        }
+        if(interval > 0) {
+            mHandler.postDelayed(mTick, interval);
+        }
     }
 
 }
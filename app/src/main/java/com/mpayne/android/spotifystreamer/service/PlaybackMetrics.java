@@ -0,0 +1,256 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Records how long each play, next and previous action takes to reach audio, phase by phase,
+ * along with buffering stalls and player errors. Latencies are kept in bounded histograms
+ * reported as p50/p95/p99. Each finished start is also logged as one JSON line under
+ * {@link #LOG_TAG} so it can be collected from test devices with logcat.
+ *
+ * Timestamps are SystemClock.elapsedRealtime milliseconds. Recording happens on the main thread,
+ * but the service is dumped on a binder thread, so all access is synchronized.
+ */
+public class PlaybackMetrics {
+
+    public static final String LOG_TAG = "PlaybackMetrics";
+
+    public static final String ACTION_PLAY = "play";
+    public static final String ACTION_NEXT = "next";
+    public static final String ACTION_PREVIOUS = "previous";
+    public static final String ACTION_AUTO_ADVANCE = "auto_advance";
+
+    // Phases in the order a start passes through them.
+    public static final int PHASE_REQUESTED = 0;
+    public static final int PHASE_DELIVERED = 1;
+    public static final int PHASE_DATA_SOURCE_SET = 2;
+    public static final int PHASE_PREPARE_STARTED = 3;
+    public static final int PHASE_PREPARED = 4;
+    private static final String[] PHASE_NAMES = {"requested", "delivered", "data_source_set", "prepare_started", "prepared"};
+
+    private static final int MAX_SAMPLES = 256;
+
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+
+    private String mAction;
+    private final long[] mPhaseTimes = new long[PHASE_NAMES.length];
+    private boolean mPrebuffered;
+
+    private long mStallStartedAt = -1;
+    private int mStallCount;
+    private int mErrorCount;
+    private int mRetryCount;
+    private int mSkipCount;
+    private final Map<String, Integer> mErrors = new LinkedHashMap<>();
+
+    /**
+     * Starts timing an action requested at the given time, or now if unknown.
+     */
+    public synchronized void begin(String action, long requestedAt) {
+        long now = SystemClock.elapsedRealtime();
+        mAction = action;
+        mPrebuffered = false;
+        Arrays.fill(mPhaseTimes, -1);
+        mPhaseTimes[PHASE_REQUESTED] = requestedAt > 0 ? requestedAt : now;
+        mPhaseTimes[PHASE_DELIVERED] = now;
+    }
+
+    /**
+     * Drops the action being timed, e.g. a skip with nothing to skip to, so it neither lingers
+     * until the next start nor gets timed as one.
+     */
+    public synchronized void discard() {
+        mAction = null;
+    }
+
+    public synchronized void mark(int phase) {
+        if (mAction != null) {
+            mPhaseTimes[phase] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Marks the start as served by a player buffered ahead of time.
+     */
+    public synchronized void markPrebuffered() {
+        mPrebuffered = true;
+    }
+
+    /**
+     * Records the time to audio for the current action once its player is prepared.
+     */
+    public synchronized void finish() {
+        if (mAction == null) {
+            return;
+        }
+        mark(PHASE_PREPARED);
+        long requestedAt = mPhaseTimes[PHASE_REQUESTED];
+        JSONObject event = new JSONObject();
+        try {
+            event.put("event", "start");
+            event.put("action", mAction);
+            event.put("prebuffered", mPrebuffered);
+            for (int phase = PHASE_DELIVERED; phase < PHASE_NAMES.length; phase++) {
+                if (mPhaseTimes[phase] < 0) {
+                    continue;
+                }
+                long latency = mPhaseTimes[phase] - requestedAt;
+                getHistogram(mAction + "." + PHASE_NAMES[phase]).add(latency);
+                event.put(PHASE_NAMES[phase] + "_ms", latency);
+            }
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers.
+        }
+        Log.i(LOG_TAG, event.toString());
+        mAction = null;
+    }
+
+    public synchronized void recordStallStart() {
+        if (mStallStartedAt < 0) {
+            mStallStartedAt = SystemClock.elapsedRealtime();
+            mStallCount++;
+        }
+    }
+
+    public synchronized void recordStallEnd() {
+        if (mStallStartedAt >= 0) {
+            long duration = SystemClock.elapsedRealtime() - mStallStartedAt;
+            mStallStartedAt = -1;
+            getHistogram("stall").add(duration);
+            Log.i(LOG_TAG, "{\"event\":\"stall\",\"duration_ms\":" + duration + "}");
+        }
+    }
+
+    public synchronized void recordError(int what, int extra, boolean prebuffering) {
+        mErrorCount++;
+        String key = what + "/" + extra;
+        Integer count = mErrors.get(key);
+        mErrors.put(key, count == null ? 1 : count + 1);
+        Log.i(LOG_TAG, "{\"event\":\"error\",\"what\":" + what + ",\"extra\":" + extra
+                + ",\"prebuffering\":" + prebuffering + "}");
+    }
+
+    public synchronized void recordRetry() {
+        mRetryCount++;
+    }
+
+    /**
+     * Records a track skipped because it could not be played.
+     */
+    public synchronized void recordSkip() {
+        mSkipCount++;
+    }
+
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized int getSkipCount() {
+        return mSkipCount;
+    }
+
+    public synchronized int getStallCount() {
+        return mStallCount;
+    }
+
+    public synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * Returns the given percentile of a recorded latency, e.g. "play.prepared", or -1 if none.
+     */
+    public synchronized long getPercentile(String name, int percentile) {
+        Histogram histogram = mHistograms.get(name);
+        return histogram == null ? -1 : histogram.percentile(percentile);
+    }
+
+    private Histogram getHistogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns all aggregates as JSON.
+     */
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONObject latencies = new JSONObject();
+            for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                latencies.put(entry.getKey(), new JSONObject()
+                        .put("count", histogram.getCount())
+                        .put("p50", histogram.percentile(50))
+                        .put("p95", histogram.percentile(95))
+                        .put("p99", histogram.percentile(99)));
+            }
+            json.put("latencies_ms", latencies);
+            json.put("stalls", mStallCount);
+            json.put("errors", mErrorCount);
+            json.put("errors_by_code", new JSONObject(mErrors));
+            json.put("retries", mRetryCount);
+            json.put("skips", mSkipCount);
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers.
+        }
+        return json;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Playback latencies since requested (ms):");
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            writer.println(String.format(Locale.US, "  %-28s n=%-4d p50=%-6d p95=%-6d p99=%d",
+                    entry.getKey(), histogram.getCount(), histogram.percentile(50),
+                    histogram.percentile(95), histogram.percentile(99)));
+        }
+        writer.println("Stalls: " + mStallCount);
+        writer.println("Errors: " + mErrorCount + " " + mErrors);
+        writer.println("Retries: " + mRetryCount + ", skipped tracks: " + mSkipCount);
+        writer.println("JSON: " + toJson());
+    }
+
+    /**
+     * Keeps the most recent samples of one latency.
+     */
+    private static class Histogram {
+        private final long[] mSamples = new long[MAX_SAMPLES];
+        private int mCount;
+
+        void add(long value) {
+            mSamples[mCount % MAX_SAMPLES] = value;
+            mCount++;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        long percentile(int percentile) {
+            int size = Math.min(mCount, MAX_SAMPLES);
+            if (size == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mSamples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(index, size - 1))];
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.text.TextUtils;
+
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * In-process list of tracks to play, shared by reference between the UI and MusicPlayerService
+ * so intents only carry its id. Queues are kept in a small registry; only the most recently
+ * created ones stay reachable by id.
+ *
+ * A queue created with a seed artist is a radio queue that MusicPlayerService keeps extending
+ * with tracks by related artists, so each track remembers which artist it is by.
+ */
+public class PlaybackQueue {
+
+    private static final int MAX_QUEUES = 4;
+
+    private static final Map<Long, PlaybackQueue> sQueues =
+            new LinkedHashMap<Long, PlaybackQueue>(MAX_QUEUES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, PlaybackQueue> eldest) {
+                    return size() > MAX_QUEUES;
+                }
+            };
+    private static long sNextId = 1;
+
+    private final long mId;
+    private final String mSeedArtistId;
+    private final String mArtistName;
+    private final List<Track> mTracks;
+    // Artist of each track, parallel to mTracks.
+    private final List<String> mArtistNames;
+    private final Set<String> mUnplayableTrackIds = new HashSet<>();
+
+    private PlaybackQueue(long id, String seedArtistId, String artistName, List<Track> tracks, List<String> artistNames) {
+        mId = id;
+        mSeedArtistId = seedArtistId;
+        mArtistName = artistName;
+        mTracks = new ArrayList<>(tracks);
+        mArtistNames = new ArrayList<>(artistNames);
+    }
+
+    /**
+     * Creates and registers a queue holding the given tracks.
+     */
+    public static PlaybackQueue create(String artistName, List<Track> tracks) {
+        return create(null, artistName, tracks);
+    }
+
+    /**
+     * Creates and registers a queue holding the given tracks by one artist.
+     *
+     * @param seedArtistId artist whose related artists extend the queue, or null to only play the given tracks
+     */
+    public static PlaybackQueue create(String seedArtistId, String artistName, List<Track> tracks) {
+        return register(seedArtistId, artistName, tracks, Collections.nCopies(tracks.size(), artistName));
+    }
+
+    /**
+     * Recreates a saved queue, keeping the artist of each track.
+     */
+    static PlaybackQueue restore(String seedArtistId, String artistName, List<Track> tracks, List<String> artistNames) {
+        return register(seedArtistId, artistName, tracks, artistNames);
+    }
+
+    private static PlaybackQueue register(String seedArtistId, String artistName, List<Track> tracks,
+                                          List<String> artistNames) {
+        synchronized (sQueues) {
+            PlaybackQueue queue = new PlaybackQueue(sNextId++, seedArtistId, artistName, tracks, artistNames);
+            sQueues.put(queue.mId, queue);
+            return queue;
+        }
+    }
+
+    /**
+     * Returns the queue with the given id or null if it no longer exists.
+     */
+    public static PlaybackQueue get(long id) {
+        synchronized (sQueues) {
+            return sQueues.get(id);
+        }
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the artist the queue was started from.
+     */
+    public String getArtistName() {
+        return mArtistName;
+    }
+
+    /**
+     * Returns the seed artist of a radio queue or null.
+     */
+    public String getSeedArtistId() {
+        return mSeedArtistId;
+    }
+
+    public synchronized String getArtistName(int index) {
+        return mArtistNames.get(index);
+    }
+
+    /**
+     * Returns a copy of the artist of each track.
+     */
+    public synchronized List<String> getArtistNames() {
+        return new ArrayList<>(mArtistNames);
+    }
+
+    public synchronized int size() {
+        return mTracks.size();
+    }
+
+    public synchronized Track get(int index) {
+        return mTracks.get(index);
+    }
+
+    /**
+     * Returns a copy of the tracks.
+     */
+    public synchronized List<Track> getTracks() {
+        return new ArrayList<>(mTracks);
+    }
+
+    /**
+     * Marks a track that can never play, e.g. because its preview is gone, so it is skipped from now on.
+     */
+    public synchronized void markUnplayable(Track track) {
+        mUnplayableTrackIds.add(track.getId());
+    }
+
+    /**
+     * Returns true if the track has a preview that hasn't been marked unplayable.
+     */
+    public synchronized boolean isPlayable(Track track) {
+        return !TextUtils.isEmpty(track.getPreviewUrl()) && !mUnplayableTrackIds.contains(track.getId());
+    }
+
+    public synchronized void append(List<Track> tracks) {
+        mTracks.addAll(tracks);
+        mArtistNames.addAll(Collections.nCopies(tracks.size(), mArtistName));
+    }
+
+    /**
+     * Appends the artist's tracks that aren't queued yet.
+     *
+     * @return how many tracks were appended
+     */
+    public synchronized int appendNew(String artistName, List<Track> tracks) {
+        Set<String> queuedIds = new HashSet<>();
+        for (Track track : mTracks) {
+            queuedIds.add(track.getId());
+        }
+        int appended = 0;
+        for (Track track : tracks) {
+            if (queuedIds.add(track.getId())) {
+                mTracks.add(track);
+                mArtistNames.add(artistName);
+                appended++;
+            }
+        }
+        return appended;
+    }
+
+    public synchronized void move(int from, int to) {
+        mTracks.add(to, mTracks.remove(from));
+        mArtistNames.add(to, mArtistNames.remove(from));
+    }
+
+    public synchronized void replace(List<Track> tracks) {
+        mTracks.clear();
+        mTracks.addAll(tracks);
+        mArtistNames.clear();
+        mArtistNames.addAll(Collections.nCopies(tracks.size(), mArtistName));
+    }
+}
@@ -0,0 +1,175 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.util.Log;
+
+import com.mpayne.android.spotifystreamer.EntityCodec;
+import com.mpayne.android.spotifystreamer.Track;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * What MusicPlayerService was playing, kept in a small versioned binary file so the session
+ * survives the process being killed. The queue is written with EntityCodec. Snapshots written
+ * by another format version are ignored.
+ */
+public final class PlaybackSession {
+
+    private static final String TAG = PlaybackSession.class.getSimpleName();
+
+    static final String FILE_NAME = "playback-session.bin";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x53505353;
+    private static final int VERSION = 3;
+    private static final int MAX_TRACKS = 10000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String mSeedArtistId;
+    private final String mArtistName;
+    private final List<Track> mTracks;
+    private final List<String> mArtistNames;
+    private final int mTrackPosition;
+    private final int mProgress;
+    private final int mDuration;
+
+    /**
+     * @param artistNames the artist of each track
+     */
+    public PlaybackSession(String seedArtistId, String artistName, List<Track> tracks, List<String> artistNames,
+                           int trackPosition, int progress, int duration) {
+        mSeedArtistId = seedArtistId;
+        mArtistName = artistName;
+        mTracks = Collections.unmodifiableList(tracks);
+        mArtistNames = Collections.unmodifiableList(artistNames);
+        mTrackPosition = trackPosition;
+        mProgress = progress;
+        mDuration = duration;
+    }
+
+    /**
+     * Returns the seed artist of a radio queue or null.
+     */
+    public String getSeedArtistId() {
+        return mSeedArtistId;
+    }
+
+    /**
+     * Returns the artist the queue was started from.
+     */
+    public String getArtistName() {
+        return mArtistName;
+    }
+
+    public List<Track> getTracks() {
+        return mTracks;
+    }
+
+    public List<String> getArtistNames() {
+        return mArtistNames;
+    }
+
+    public int getTrackPosition() {
+        return mTrackPosition;
+    }
+
+    /**
+     * Returns the position within the track in milliseconds.
+     */
+    public int getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Returns the track duration in milliseconds or -1 if it wasn't known.
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Replaces the snapshot in the given file. The old one stays intact if writing fails.
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, mSeedArtistId);
+            writeString(out, mArtistName);
+            out.writeInt(mTrackPosition);
+            out.writeInt(mProgress);
+            out.writeInt(mDuration);
+            EntityCodec.writeTracks(out, mTracks);
+            EntityCodec.writeStrings(out, mArtistNames);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Reads the snapshot in the given file.
+     *
+     * @return the session or null if there is none or it can't be used
+     */
+    public static PlaybackSession read(File file) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String seedArtistId = readString(in);
+            String artistName = readString(in);
+            int trackPosition = in.readInt();
+            int progress = in.readInt();
+            int duration = in.readInt();
+            List<Track> tracks = EntityCodec.readTracks(in);
+            List<String> artistNames = EntityCodec.readStrings(in);
+            int trackCount = tracks.size();
+            if (trackCount == 0 || trackCount > MAX_TRACKS || artistNames.size() != trackCount
+                    || trackPosition < 0 || trackPosition >= trackCount) {
+                return null;
+            }
+            return new PlaybackSession(seedArtistId, artistName, tracks, artistNames, trackPosition, progress, duration);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable playback session", e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
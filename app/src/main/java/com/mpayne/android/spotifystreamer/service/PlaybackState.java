@@ -0,0 +1,94 @@
+package com.mpayne.android.spotifystreamer.service;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.mpayne.android.spotifystreamer.Track;
+
+
+/**
+ * Immutable snapshot of what MusicPlayerService is playing. Progress is given as a position
+ * anchored at an elapsedRealtime timestamp so listeners can extrapolate it without polling.
+ */
+public final class PlaybackState {
+
+    public static final PlaybackState EMPTY = new PlaybackState(null, null, false, -1, 0, 0);
+
+    private final String mArtistName;
+    private final Track mTrack;
+    private final boolean mPlaying;
+    private final int mDuration;
+    private final int mPosition;
+    private final long mPositionTimestamp;
+
+    public PlaybackState(String artistName, Track track, boolean playing, int duration,
+                         int position, long positionTimestamp) {
+        mArtistName = artistName;
+        mTrack = track;
+        mPlaying = playing;
+        mDuration = duration;
+        mPosition = position;
+        mPositionTimestamp = positionTimestamp;
+    }
+
+    public String getArtistName() {
+        return mArtistName;
+    }
+
+    public Track getTrack() {
+        return mTrack;
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * Returns the track duration in milliseconds or -1 if not yet known.
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Returns the position in milliseconds at {@link #getPositionTimestamp()}.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public long getPositionTimestamp() {
+        return mPositionTimestamp;
+    }
+
+    /**
+     * Returns the position extrapolated to the given elapsedRealtime, capped at the duration.
+     */
+    public int getPosition(long elapsedRealtime) {
+        if (!mPlaying) {
+            return mPosition;
+        }
+        long position = mPosition + Math.max(0, elapsedRealtime - mPositionTimestamp);
+        return (int) (mDuration > 0 ? Math.min(position, mDuration) : position);
+    }
+
+    public int getCurrentPosition() {
+        return getPosition(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns true if this snapshot describes the same playback as another, allowing the given
+     * drift between its extrapolated position and the other's.
+     */
+    public boolean isEquivalentTo(PlaybackState other, int toleranceMillis) {
+        if (other == null || mPlaying != other.mPlaying || mDuration != other.mDuration
+                || !TextUtils.equals(mArtistName, other.mArtistName)) {
+            return false;
+        }
+        if (mTrack != other.mTrack && (mTrack == null || other.mTrack == null
+                || !TextUtils.equals(mTrack.getId(), other.mTrack.getId()))) {
+            return false;
+        }
+        return Math.abs(getPosition(other.mPositionTimestamp) - other.mPosition) <= toleranceMillis;
+    }
+}